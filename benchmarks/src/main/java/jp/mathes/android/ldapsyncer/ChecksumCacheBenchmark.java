@@ -0,0 +1,75 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Lookups and updates of the in-memory checksum cache: the copy each merge
+ * starts from and the replacement of the checksums of the changed contacts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChecksumCacheBenchmark {
+  ChecksumCache cache;
+  Dataset data;
+  // the checksums after the sync of each contact, null if it did not change
+  Map<String, byte[]>[] updates;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setup(DatasetState state) {
+    this.data = state.data;
+    FieldHasher hasher = FieldHasher.forName(FieldHasher.MD5);
+    byte[][][] synced = Dataset.hash(hasher, this.data.synced);
+    byte[][][] ldap = Dataset.hash(hasher, this.data.ldap);
+    this.cache = new ChecksumCache();
+    this.updates = new Map[this.data.contacts];
+    for (int c = 0; c < this.data.contacts; c++) {
+      this.cache.replace(this.data.ids[c], checksums(synced[c], hasher));
+      if (this.data.isChanged(c)) this.updates[c] = checksums(ldap[c], hasher);
+    }
+  }
+
+  @Benchmark
+  public void copy(Blackhole blackhole) {
+    for (String id : this.data.ids) blackhole.consume(this.cache.copy(id));
+  }
+
+  @Benchmark
+  public void get(Blackhole blackhole) {
+    for (String id : this.data.ids) {
+      for (String field : this.data.fieldNames) blackhole.consume(this.cache.get(id, field));
+    }
+  }
+
+  @Benchmark
+  public void replaceChanged() {
+    for (int c = 0; c < this.updates.length; c++) {
+      if (this.updates[c] != null) this.cache.replace(this.data.ids[c], new HashMap<String, byte[]>(this.updates[c]));
+    }
+  }
+
+  private Map<String, byte[]> checksums(byte[][] digests, FieldHasher hasher) {
+    Map<String, byte[]> checksums = new HashMap<String, byte[]>();
+    for (int f = 0; f < digests.length; f++) {
+      if (digests[f] != null) checksums.put(this.data.fieldNames[f], digests[f]);
+    }
+    checksums.put(ChecksumCache.RECORD, hasher.record(digests));
+    return checksums;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * The checksum DB on SQLite through JDBC, standing in for the SQLite of the
+ * platform: loading all checksums at the start of a sync and writing the
+ * checksums of the changed contacts in transactions of a batch each, with
+ * the statements and storage profiles of ChecksumSchema and
+ * SQLiteChecksumStore.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChecksumStoreBenchmark {
+  @Param({ SQLiteChecksumStore.PROFILE_DEFAULT, SQLiteChecksumStore.PROFILE_RELAXED, SQLiteChecksumStore.PROFILE_WAL })
+  String profile;
+
+  @Param({ "200" })
+  int batchSize;
+
+  Dataset data;
+  byte[][][] updates;
+  File file;
+  Connection connection;
+
+  @Setup(Level.Trial)
+  public void setup(DatasetState state) throws IOException, SQLException {
+    this.data = state.data;
+    FieldHasher hasher = FieldHasher.forName(FieldHasher.MD5);
+    byte[][][] synced = Dataset.hash(hasher, this.data.synced);
+    byte[][][] ldap = Dataset.hash(hasher, this.data.ldap);
+    this.updates = new byte[this.data.contacts][][];
+    for (int c = 0; c < this.data.contacts; c++) {
+      if (this.data.isChanged(c)) this.updates[c] = ldap[c];
+    }
+    this.file = File.createTempFile("checksums", ".db");
+    this.connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getPath());
+    Statement statement = this.connection.createStatement();
+    if (SQLiteChecksumStore.PROFILE_WAL.equals(this.profile)) statement.execute("PRAGMA journal_mode=WAL");
+    if (!SQLiteChecksumStore.PROFILE_DEFAULT.equals(this.profile)) statement.execute("PRAGMA synchronous=NORMAL");
+    for (String sql : ChecksumSchema.CREATE_TABLES) statement.execute(sql);
+    statement.close();
+    this.connection.setAutoCommit(false);
+    PreparedStatement insertEntry = this.connection.prepareStatement(ChecksumSchema.INSERT_ENTRY);
+    for (String id : this.data.ids) {
+      insertEntry.setString(1, id);
+      insertEntry.executeUpdate();
+    }
+    insertEntry.close();
+    PreparedStatement insertField = this.connection.prepareStatement(ChecksumSchema.INSERT_FIELD);
+    for (String field : this.data.fieldNames) {
+      insertField.setString(1, field);
+      insertField.executeUpdate();
+    }
+    insertField.close();
+    this.connection.commit();
+    for (int from = 0; from < this.data.contacts; from += this.batchSize) write(synced, from, Math.min(from + this.batchSize, this.data.contacts));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws SQLException {
+    this.connection.close();
+    new File(this.file.getPath() + "-wal").delete();
+    new File(this.file.getPath() + "-shm").delete();
+    this.file.delete();
+  }
+
+  @Benchmark
+  public Map<String, Map<String, byte[]>> load() throws SQLException {
+    Map<String, Map<String, byte[]>> checksums = new HashMap<String, Map<String, byte[]>>();
+    Statement statement = this.connection.createStatement();
+    ResultSet rows = statement.executeQuery(ChecksumSchema.SELECT_CHECKSUMS);
+    while (rows.next()) {
+      String name = rows.getString(1);
+      Map<String, byte[]> entry = checksums.get(name);
+      if (entry == null) {
+        entry = new HashMap<String, byte[]>(4);
+        checksums.put(name, entry);
+      }
+      entry.put(rows.getString(2), rows.getBytes(3));
+    }
+    rows.close();
+    statement.close();
+    this.connection.commit();
+    return checksums;
+  }
+
+  @Benchmark
+  public void writeChanged() throws SQLException {
+    write(this.updates, 0, this.updates.length);
+  }
+
+  /*
+   * Replaces the checksums of the contacts, committing every batchSize
+   * contacts as ChecksumCache.flush() does.
+   */
+  private void write(byte[][][] digests, int from, int to) throws SQLException {
+    PreparedStatement clear = this.connection.prepareStatement(ChecksumSchema.DELETE_ENTRY_CHECKSUMS);
+    PreparedStatement insert = this.connection.prepareStatement(ChecksumSchema.INSERT_CHECKSUM);
+    int pending = 0;
+    for (int c = from; c < to; c++) {
+      if (digests[c] == null) continue;
+      long entryId = c + 1;
+      clear.setLong(1, ChecksumSchema.key(entryId, 0));
+      clear.setLong(2, ChecksumSchema.key(entryId, (int) ChecksumSchema.FIELD_MASK));
+      clear.executeUpdate();
+      for (int f = 0; f < digests[c].length; f++) {
+        insert.setLong(1, ChecksumSchema.key(entryId, f + 1));
+        insert.setBytes(2, digests[c][f]);
+        insert.executeUpdate();
+      }
+      if (++pending >= this.batchSize) {
+        this.connection.commit();
+        pending = 0;
+      }
+    }
+    this.connection.commit();
+    clear.close();
+    insert.close();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import jp.mathes.android.ldapsyncer.exceptions.ConfigurationParsingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xmlpull.v1.XmlPullParserException;
+
+/*
+ * Reading the shipped configuration, with extraFields more mapped fields,
+ * from a data directory: compiled from the file and taken from the cache
+ * when the file is unchanged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConfigurationBenchmark {
+  @Param({ "0", "50" })
+  int extraFields;
+
+  File dataDirectory;
+  ConfigurationCache cache = new ConfigurationCache();
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    InputStream in = ConfigurationBenchmark.class.getResourceAsStream("/" + LDAPSyncer.CONFIG_FILE);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int len;
+    while ((len = in.read(buf)) > 0) content.write(buf, 0, len);
+    in.close();
+    StringBuilder attributes = new StringBuilder();
+    for (int i = 0; i < this.extraFields; i++) {
+      attributes.append("    <attribute>\n      <ldap>extra").append(i).append("</ldap>\n      <android>\n");
+      attributes.append("        <name>android.provider.Contacts$Organizations.COMPANY</name>\n");
+      attributes.append("        <type>android.provider.Contacts$Organizations.TYPE_CUSTOM</type>\n");
+      attributes.append("        <typeLabel>Extra ").append(i).append("</typeLabel>\n");
+      attributes.append("        <directory>android.provider.Contacts$Organizations.CONTENT_DIRECTORY</directory>\n");
+      attributes.append("      </android>\n    </attribute>\n");
+    }
+    String configuration = content.toString("UTF-8").replace("</mapping>", attributes + "  </mapping>");
+    this.dataDirectory = File.createTempFile("ldapsyncer", "");
+    this.dataDirectory.delete();
+    this.dataDirectory.mkdir();
+    OutputStream out = new FileOutputStream(new File(this.dataDirectory, LDAPSyncer.CONFIG_FILE));
+    out.write(configuration.getBytes("UTF-8"));
+    out.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    new File(this.dataDirectory, LDAPSyncer.CONFIG_FILE).delete();
+    this.dataDirectory.delete();
+  }
+
+  @Benchmark
+  public Configuration readConfiguration() throws IOException, XmlPullParserException, ConfigurationParsingException {
+    return Configuration.readConfiguration(this.dataDirectory.getPath());
+  }
+
+  @Benchmark
+  public Configuration cachedConfiguration() throws IOException, XmlPullParserException, ConfigurationParsingException {
+    return this.cache.get(this.dataDirectory.getPath());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.Random;
+
+/*
+ * A synthetic address book: the field values of every contact as of the last
+ * sync and as found on LDAP and on Android at the next one, where each field
+ * changed on either side with the change rate. About a tenth of the fields
+ * are empty. The same seed gives the same data.
+ */
+public class Dataset {
+  private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzäöüßABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .-@";
+
+  final int contacts;
+  final int fields;
+  final String[] ids;
+  final String[] fieldNames;
+  // [contact][field], null for an empty field
+  final String[][] synced;
+  final String[][] ldap;
+  final String[][] android;
+
+  public Dataset(int contacts, int fields, double changeRate, long seed) {
+    Random random = new Random(seed);
+    this.contacts = contacts;
+    this.fields = fields;
+    this.ids = new String[contacts];
+    this.fieldNames = new String[fields];
+    for (int i = 0; i < fields; i++) this.fieldNames[i] = "field" + i;
+    this.synced = new String[contacts][fields];
+    this.ldap = new String[contacts][fields];
+    this.android = new String[contacts][fields];
+    for (int c = 0; c < contacts; c++) {
+      this.ids[c] = String.format("Contact %07d %s", c, value(random, 8));
+      for (int f = 0; f < fields; f++) {
+        String value = random.nextInt(10) == 0 ? null : value(random, 4 + random.nextInt(28));
+        this.synced[c][f] = value;
+        this.ldap[c][f] = random.nextDouble() < changeRate ? value(random, 4 + random.nextInt(28)) : value;
+        this.android[c][f] = random.nextDouble() < changeRate ? value(random, 4 + random.nextInt(28)) : value;
+      }
+    }
+  }
+
+  /*
+   * Whether the contact changed on either side since the last sync.
+   */
+  public boolean isChanged(int contact) {
+    for (int f = 0; f < this.fields; f++) {
+      if (!equal(this.synced[contact][f], this.ldap[contact][f]) || !equal(this.synced[contact][f], this.android[contact][f])) return true;
+    }
+    return false;
+  }
+
+  /*
+   * The digests of all fields of the values.
+   */
+  public static byte[][][] hash(FieldHasher hasher, String[][] values) {
+    byte[][][] digests = new byte[values.length][][];
+    for (int c = 0; c < values.length; c++) {
+      digests[c] = new byte[values[c].length][];
+      for (int f = 0; f < values[c].length; f++) digests[c][f] = hasher.hash(values[c][f]);
+    }
+    return digests;
+  }
+
+  static String value(Random random, int length) {
+    StringBuilder value = new StringBuilder(length);
+    for (int i = 0; i < length; i++) value.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+    return value.toString();
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * The dataset shared by the benchmarks, its size is chosen with -p.
+ */
+@State(Scope.Benchmark)
+public class DatasetState {
+  @Param({ "100", "1000", "10000", "100000" })
+  int contacts;
+
+  @Param({ "8", "32" })
+  int fields;
+
+  @Param({ "0.01", "0.1" })
+  double changeRate;
+
+  Dataset data;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.data = new Dataset(this.contacts, this.fields, this.changeRate, 42);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedDeleteRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/*
+ * An LDAP server in the same process, the in-memory directory server of the
+ * UnboundID SDK listening on a free port of the loopback interface. The
+ * connections of a sync are connected to it over the socket and bound with
+ * the credentials of the configuration, they are closed when released. The
+ * schema is not checked, the evolutionPerson attributes of the mapping are
+ * not in the standard schema.
+ *
+ * The server can be made to drop all connections at a given write received
+ * over them, as if it went away.
+ */
+public class EmbeddedDirectoryStore implements DirectoryStore {
+  private final InMemoryDirectoryServer server;
+  // writes until the connections are dropped, 0 if they are not
+  private final AtomicInteger writesUntilFailure = new AtomicInteger();
+
+  public EmbeddedDirectoryStore(String basedn, String binddn, String password) throws LDAPException {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(basedn);
+    config.addAdditionalBindCredentials(binddn, password);
+    config.setSchema(null);
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", InetAddress.getLoopbackAddress(), 0, null));
+    config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+      public void processAddRequest(InMemoryInterceptedAddRequest request) throws LDAPException {
+        write();
+      }
+
+      public void processModifyRequest(InMemoryInterceptedModifyRequest request) throws LDAPException {
+        write();
+      }
+
+      public void processDeleteRequest(InMemoryInterceptedDeleteRequest request) throws LDAPException {
+        write();
+      }
+    });
+    this.server = new InMemoryDirectoryServer(config);
+    this.server.add(new Entry(basedn, new Attribute("objectClass", "top", "domain")));
+    this.server.startListening();
+  }
+
+  public int getPort() {
+    return this.server.getListenPort();
+  }
+
+  /*
+   * Adds the entries without going through a connection.
+   */
+  public void add(Collection<Entry> entries) throws LDAPException {
+    for (Entry entry : entries) this.server.add(entry);
+  }
+
+  /*
+   * Drops all connections when the given number of writes more was received,
+   * the last of them is not processed.
+   */
+  public void failAfterWrites(int writes) {
+    this.writesUntilFailure.set(writes);
+  }
+
+  private void write() throws LDAPException {
+    if (this.writesUntilFailure.get() <= 0 || this.writesUntilFailure.decrementAndGet() > 0) return;
+    this.server.closeAllConnections(false);
+    throw new LDAPException(ResultCode.SERVER_DOWN, "connections dropped");
+  }
+
+  public InMemoryDirectoryServer getServer() {
+    return this.server;
+  }
+
+  public LDAPConnection getConnection(Configuration configuration) throws LDAPException {
+    LDAPConnection conn = this.server.getConnection();
+    conn.bind(configuration.binddn, configuration.password);
+    return conn;
+  }
+
+  public void release(LDAPConnection conn, boolean defunct) {
+    conn.close();
+  }
+
+  public void close() {
+    this.server.shutDown(true);
+  }
+}
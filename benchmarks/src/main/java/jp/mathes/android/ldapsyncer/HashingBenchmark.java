@@ -0,0 +1,46 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Hashing the fields and the record hash of every contact, as done for both
+ * sides of each entry during a sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashingBenchmark {
+  @Param({ FieldHasher.MD5, FieldHasher.MD5_LEGACY, FieldHasher.FNV1A64 })
+  String algorithm;
+
+  FieldHasher hasher;
+
+  @Setup
+  public void setup() {
+    this.hasher = FieldHasher.forName(this.algorithm);
+  }
+
+  @Benchmark
+  public void hashContacts(DatasetState state, Blackhole blackhole) {
+    Dataset data = state.data;
+    byte[][] digests = new byte[data.fields][];
+    for (int c = 0; c < data.contacts; c++) {
+      for (int f = 0; f < data.fields; f++) digests[f] = this.hasher.hash(data.ldap[c][f]);
+      blackhole.consume(this.hasher.record(digests));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The checksum DB in memory. The writes since the last commit are made on
+ * copies of the entries they touch, a commit replaces the entries with
+ * their copies and a rollback drops them.
+ */
+public class InMemoryChecksumStore implements ChecksumStore {
+  private final String hashAlgorithm;
+  private final int batchSize;
+  private final Map<String, Map<String, byte[]>> entries = new HashMap<String, Map<String, byte[]>>();
+  // the uncommitted entries, null for a removed one
+  private final Map<String, Map<String, byte[]>> pending = new HashMap<String, Map<String, byte[]>>();
+  private int pendingEntries = 0;
+  private int commits = 0;
+
+  public InMemoryChecksumStore(String hashAlgorithm, int batchSize) {
+    this.hashAlgorithm = hashAlgorithm;
+    this.batchSize = batchSize;
+  }
+
+  public String getHashAlgorithm() {
+    return this.hashAlgorithm;
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  public int getCommits() {
+    return this.commits;
+  }
+
+  /*
+   * The names of the committed entries.
+   */
+  public Set<String> getNames() {
+    return new HashSet<String>(this.entries.keySet());
+  }
+
+  public int read(Visitor visitor) {
+    int count = 0;
+    for (Map.Entry<String, Map<String, byte[]>> entry : this.entries.entrySet()) {
+      for (Map.Entry<String, byte[]> field : entry.getValue().entrySet()) {
+        visitor.checksum(entry.getKey(), field.getKey(), field.getValue());
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+
+  public void put(String name, String field, byte[] digest) {
+    Map<String, byte[]> entry = pending(name);
+    if (entry == null) {
+      entry = new HashMap<String, byte[]>(4);
+      this.pending.put(name, entry);
+    }
+    entry.put(field, digest);
+  }
+
+  public void remove(String name, String field) {
+    Map<String, byte[]> entry = pending(name);
+    if (entry != null) entry.remove(field);
+  }
+
+  public void clear(String name) {
+    Map<String, byte[]> entry = pending(name);
+    if (entry != null) entry.clear();
+  }
+
+  public void remove(String name) {
+    this.pending.put(name, null);
+  }
+
+  public void entryFinished() {
+    if (++this.pendingEntries >= this.batchSize) commit();
+  }
+
+  public void commit() {
+    for (Map.Entry<String, Map<String, byte[]>> entry : this.pending.entrySet()) {
+      if (entry.getValue() == null) {
+        this.entries.remove(entry.getKey());
+      } else {
+        this.entries.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!this.pending.isEmpty()) this.commits++;
+    this.pending.clear();
+    this.pendingEntries = 0;
+  }
+
+  public void rollback() {
+    this.pending.clear();
+    this.pendingEntries = 0;
+  }
+
+  public void close() {
+    rollback();
+  }
+
+  /*
+   * The uncommitted copy of the entry, made on first use, null if the entry
+   * does not exist.
+   */
+  private Map<String, byte[]> pending(String name) {
+    if (this.pending.containsKey(name)) return this.pending.get(name);
+    Map<String, byte[]> entry = this.entries.get(name);
+    if (entry == null) return null;
+    entry = new HashMap<String, byte[]>(entry);
+    this.pending.put(name, entry);
+    return entry;
+  }
+}
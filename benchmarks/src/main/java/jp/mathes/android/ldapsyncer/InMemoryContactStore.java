@@ -0,0 +1,262 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.mathes.android.ldapsyncer.ContactSnapshot.SubDirEntry;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+
+/*
+ * The contacts provider in memory: people with their direct columns and the
+ * rows of their subdirectories, matched to the fields of the mapping like
+ * the SubdirIndex does. Every write counts as a change notification of the
+ * provider, and the contacts confirmed by a sync are unchanged for the next
+ * one if nothing was written since its start, like the AndroidChangeTracker
+ * tells them.
+ */
+public class InMemoryContactStore implements ContactStore, ContactSnapshot.Subdirs {
+
+  static class Person {
+    final long id;
+    final Map<String, Object> values;
+    // rows by directory
+    final Map<String, List<Row>> rows = new HashMap<String, List<Row>>(4);
+
+    Person(long id, Map<String, Object> values) {
+      this.id = id;
+      this.values = values;
+    }
+  }
+
+  static class Row {
+    final long id;
+    final Map<String, Object> values;
+
+    Row(long id, Map<String, Object> values) {
+      this.id = id;
+      this.values = values;
+    }
+  }
+
+  private final Map<Long, Person> people = new LinkedHashMap<Long, Person>();
+  private final Map<Long, Person> rowOwners = new HashMap<Long, Person>();
+  private final Set<Long> journaled = new HashSet<Long>();
+  // the writes made when the journaled contacts were read, -1 for none
+  private long journaledChanges = -1;
+  private long changes = 0;
+  private long nextPersonId = 1;
+  private long nextRowId = 1;
+  // the state of a sync, from load() to close()
+  private MappingPlan plan;
+  private String idColumn;
+  private List<Person> loaded;
+  private final Map<String, Person> firstPerson = new HashMap<String, Person>();
+  private final Map<String, Integer> counts = new HashMap<String, Integer>();
+  private final Set<String> seen = new HashSet<String>();
+  private long loadedChanges;
+  private final Map<String, Long> confirmed = new HashMap<String, Long>();
+  private final Set<String> rejected = new HashSet<String>();
+  private Person current;
+
+  public int size() {
+    return this.people.size();
+  }
+
+  public List<Long> getPersonIds() {
+    return new ArrayList<Long>(this.people.keySet());
+  }
+
+  public Map<String, Object> getValues(long personId) {
+    return this.people.get(personId).values;
+  }
+
+  public void load(Configuration configuration, SyncMetrics metrics) {
+    this.plan = configuration.plan;
+    this.idColumn = configuration.IdOnAndroid;
+    this.loaded = new ArrayList<Person>(this.people.values());
+    this.loadedChanges = this.changes;
+    for (Person person : this.loaded) {
+      String id = (String) person.values.get(this.idColumn);
+      if (id == null) continue;
+      Integer count = this.counts.get(id);
+      if (count == null) this.firstPerson.put(id, person);
+      this.counts.put(id, count == null ? 1 : count + 1);
+    }
+  }
+
+  public int match(String id) {
+    this.seen.add(id);
+    Integer count = this.counts.get(id);
+    if (count == null) return 0;
+    this.current = this.firstPerson.get(id);
+    return count;
+  }
+
+  public ContactSnapshot current() {
+    return snapshot(this.current);
+  }
+
+  public Iterator<ContactSnapshot> unseen() {
+    final Iterator<Person> loaded = this.loaded.iterator();
+    return new Iterator<ContactSnapshot>() {
+      private Person next = advance();
+
+      public boolean hasNext() {
+        return this.next != null;
+      }
+
+      public ContactSnapshot next() {
+        Person person = this.next;
+        this.next = advance();
+        return snapshot(person);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      private Person advance() {
+        while (loaded.hasNext()) {
+          Person person = loaded.next();
+          if (!seen.contains(person.values.get(idColumn))) return person;
+        }
+        return null;
+      }
+    };
+  }
+
+  /*
+   * The rows of the person, read by the merge workers while nothing is
+   * written.
+   */
+  public List<SubDirEntry> find(long personId, Field field) {
+    Person person = this.people.get(personId);
+    if (person == null || field.bucketKey == null) return Collections.emptyList();
+    List<Row> rows = person.rows.get(field.androidField.directory);
+    if (rows == null) return Collections.emptyList();
+    List<SubDirEntry> result = new ArrayList<SubDirEntry>(2);
+    for (Row row : rows) {
+      Object type = row.values.get(LDAPSyncer.TYPE);
+      Object kind = row.values.get(LDAPSyncer.KIND);
+      Object label = row.values.get(LDAPSyncer.LABEL);
+      for (String key : SubdirIndex.rowKeys(type == null ? null : type.toString(), kind == null ? null : kind.toString(), (String) label)) {
+        if (!key.equals(field.bucketKey)) continue;
+        Object value = row.values.get(field.androidField.name);
+        result.add(new SubDirEntry(field.androidField, row.id, value == null ? null : value.toString()));
+        break;
+      }
+    }
+    return result;
+  }
+
+  public boolean isUnchanged(long personId) {
+    return this.loadedChanges == this.journaledChanges && this.journaled.contains(personId);
+  }
+
+  public void confirm(String id, long personId) {
+    if (!this.rejected.contains(id)) this.confirmed.put(id, personId);
+  }
+
+  public void reject(String id) {
+    this.rejected.add(id);
+    this.confirmed.remove(id);
+  }
+
+  public void save() {
+    this.journaled.clear();
+    this.journaled.addAll(this.confirmed.values());
+    this.journaledChanges = this.loadedChanges;
+  }
+
+  public long createPerson(Map<String, Object> values) {
+    Person person = new Person(this.nextPersonId++, new HashMap<String, Object>(values));
+    this.people.put(person.id, person);
+    this.changes++;
+    return person.id;
+  }
+
+  public boolean updatePerson(long personId, Map<String, Object> values) {
+    Person person = this.people.get(personId);
+    if (person == null) return false;
+    person.values.putAll(values);
+    this.changes++;
+    return true;
+  }
+
+  public int insertRows(String directory, List<Map<String, Object>> rows) {
+    int inserted = 0;
+    for (Map<String, Object> values : rows) {
+      Person person = this.people.get(values.get(LDAPSyncer.PERSON));
+      if (person == null) continue;
+      List<Row> personRows = person.rows.get(directory);
+      if (personRows == null) {
+        personRows = new ArrayList<Row>(2);
+        person.rows.put(directory, personRows);
+      }
+      Map<String, Object> rowValues = new HashMap<String, Object>(values);
+      rowValues.remove(LDAPSyncer.PERSON);
+      Row row = new Row(this.nextRowId++, rowValues);
+      personRows.add(row);
+      this.rowOwners.put(row.id, person);
+      this.changes++;
+      inserted++;
+    }
+    return inserted;
+  }
+
+  public void deleteRows(String directory, long[] rowIds) {
+    for (long rowId : rowIds) {
+      Person person = this.rowOwners.get(rowId);
+      List<Row> rows = person == null ? null : person.rows.get(directory);
+      if (rows == null) continue;
+      for (Iterator<Row> i = rows.iterator(); i.hasNext();) {
+        if (i.next().id != rowId) continue;
+        i.remove();
+        this.rowOwners.remove(rowId);
+        this.changes++;
+      }
+    }
+  }
+
+  public void deletePeople(long[] personIds) {
+    for (long personId : personIds) {
+      Person person = this.people.remove(personId);
+      if (person == null) continue;
+      this.changes++;
+      for (List<Row> rows : person.rows.values()) {
+        for (Row row : rows) this.rowOwners.remove(row.id);
+      }
+    }
+  }
+
+  public void close() {
+    this.plan = null;
+    this.loaded = null;
+    this.current = null;
+    this.firstPerson.clear();
+    this.counts.clear();
+    this.seen.clear();
+    this.confirmed.clear();
+    this.rejected.clear();
+  }
+
+  private ContactSnapshot snapshot(Person person) {
+    String[] directValues = new String[this.plan.directColumns.length];
+    for (int i = 0; i < directValues.length; i++) {
+      Object value = person.values.get(this.plan.directColumns[i]);
+      directValues[i] = value == null ? null : value.toString();
+    }
+    return new ContactSnapshot(this, this.plan, person.id, (String) person.values.get(this.idColumn), directValues);
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.mathes.android.ldapsyncer.ContactSnapshot.SubDirEntry;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/*
+ * Runs the SyncEngine end to end on an InMemoryContactStore, an
+ * InMemoryChecksumStore and an EmbeddedDirectoryStore filled by a
+ * SyntheticDirectory: a first sync of all entries and two passes, one of
+ * full and one of incremental syncs. Each pass changes a fraction of the
+ * entries and contacts and runs a sync that loses its LDAP connections
+ * halfway through its writes, a steady-state sync and a follow-up sync. The
+ * configuration is the one shipped with the app with every operation
+ * enabled on both sides and incremental syncs enabled. Reports the entries per second and the peak heap of
+ * each sync, sampled by a thread of its own, and writes the sync reports to
+ * the data directory.
+ *
+ * The test fails with exit status 1 if a sync does not complete, if a
+ * follow-up sync still writes, if the incremental pass did not sync
+ * incrementally, or if LDAP, the contacts and the checksum DB
+ * do not hold the same entries with the same values afterwards, or if a
+ * change of the SyntheticDirectory got lost.
+ *
+ * java -cp target/benchmarks.jar jp.mathes.android.ldapsyncer.LoadTest [entries [changeRate]]
+ */
+public class LoadTest {
+  private static final String BASEDN = "dc=example,dc=com";
+  private static final String BINDDN = "cn=syncer," + BASEDN;
+  private static final String PASSWORD = "secret";
+  private static final long SEED = 42;
+
+  /*
+   * The highest heap usage since the last reset.
+   */
+  private static class HeapSampler extends Thread {
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private volatile long peak;
+
+    HeapSampler() {
+      super("HeapSampler");
+      setDaemon(true);
+    }
+
+    long used() {
+      return this.memory.getHeapMemoryUsage().getUsed();
+    }
+
+    void reset() {
+      this.peak = used();
+    }
+
+    long getPeak() {
+      return Math.max(this.peak, used());
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          long used = used();
+          if (used > this.peak) this.peak = used;
+          Thread.sleep(10);
+        }
+      } catch (InterruptedException e) {
+        // stopped with the JVM
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    int failures;
+    try {
+      failures = run(args);
+    } catch (Exception e) {
+      e.printStackTrace();
+      failures = 1;
+    }
+    System.out.println(failures == 0 ? "passed" : String.format("FAILED with %d differences", failures));
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /*
+   * Returns the number of differences found after the syncs.
+   */
+  private static int run(String[] args) throws Exception {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    double changeRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+    File dataDirectory = File.createTempFile("ldapsyncer", "");
+    dataDirectory.delete();
+    dataDirectory.mkdir();
+    EmbeddedDirectoryStore directory = new EmbeddedDirectoryStore(BASEDN, BINDDN, PASSWORD);
+    try {
+      LoadTest test = new LoadTest(directory, dataDirectory, entries);
+      test.sync("first sync", true, true);
+      List<String> differences = new ArrayList<String>();
+      differences.addAll(test.pass("full", true, changeRate));
+      differences.addAll(test.pass("incremental", false, changeRate));
+      for (int i = 0; i < differences.size() && i < 20; i++) System.out.println("  " + differences.get(i));
+      if (differences.size() > 20) System.out.println(String.format("  ... and %d more", differences.size() - 20));
+      return differences.size();
+    } finally {
+      directory.close();
+    }
+  }
+
+  private final EmbeddedDirectoryStore directory;
+  private final File dataDirectory;
+  private final Configuration configuration;
+  private final SyntheticDirectory data;
+  private final InMemoryContactStore contacts = new InMemoryContactStore();
+  private final InMemoryChecksumStore checksums;
+  private final SyncEngine engine;
+  private final HeapSampler heap = new HeapSampler();
+
+  private LoadTest(EmbeddedDirectoryStore directory, File dataDirectory, int entries) throws Exception {
+    this.directory = directory;
+    this.dataDirectory = dataDirectory;
+    writeConfiguration(dataDirectory, directory.getPort());
+    this.configuration = Configuration.readConfiguration(dataDirectory.getPath());
+    if (!this.configuration.validate()) throw new IllegalStateException("The configuration is not valid");
+    this.data = new SyntheticDirectory(this.configuration, entries, entries / 10, SEED);
+    this.checksums = new InMemoryChecksumStore(this.configuration.hashAlgorithm, this.configuration.checksumBatchSize);
+    directory.add(this.data.getEntries());
+    this.data.addContacts(this.contacts);
+    SyncLog log = new SyncLog(100);
+    log.setDirectory(dataDirectory.getPath());
+    this.engine = new SyncEngine(log, directory);
+    this.heap.start();
+    System.out.println(String.format("%d LDAP entries, %d contacts on Android only, data in %s", entries, this.data.androidOnly, dataDirectory));
+  }
+
+  /*
+   * Changes the data, has a sync lose its connections halfway through its
+   * writes and syncs until nothing is left to write, all full or all
+   * incremental syncs. Returns the differences found afterwards.
+   */
+  private List<String> pass(String name, boolean fullSync, double changeRate) throws Exception {
+    int[] changed = this.data.change(this.directory.getServer(), this.contacts, changeRate);
+    System.out.println(String.format("%s: changed %d LDAP entries and %d contacts, created %d contacts", name, changed[0], changed[1], changed[2]));
+    // the changed contacts are modified in LDAP, the created ones added, the connections drop amid the modifies
+    this.directory.failAfterWrites(Math.max(1, changed[1] / 2));
+    sync(name + " interrupted", fullSync, false);
+    this.directory.failAfterWrites(0);
+    SyncMetrics steadyState = sync(name + " steady state", fullSync, true);
+    SyncMetrics followUp = sync(name + " follow-up", fullSync, true);
+    System.out.println(String.format("%d LDAP entries, %d contacts, %d checksum entries", this.directory.getServer().countEntriesBelow(BASEDN) - 1,
+        this.contacts.size(), this.checksums.size()));
+
+    List<String> differences = compare();
+    long writes = followUp.get(SyncMetrics.LDAP_ADDS) + followUp.get(SyncMetrics.LDAP_MODIFIES) + followUp.get(SyncMetrics.LDAP_DELETES)
+        + followUp.get(SyncMetrics.ANDROID_INSERTS) + followUp.get(SyncMetrics.ANDROID_UPDATES) + followUp.get(SyncMetrics.ANDROID_DELETES);
+    if (writes > 0) differences.add(0, String.format("the follow-up sync made %d writes", writes));
+    if (followUp.get(SyncMetrics.CONFLICTS) > 0) differences.add(0, String.format("the follow-up sync found %d conflicts", followUp.get(SyncMetrics.CONFLICTS)));
+    // only an incremental sync reads an entry by itself, when its contact changed
+    if (!fullSync && changed[1] > 0 && steadyState.get(SyncMetrics.LDAP_GETS) == 0) differences.add(0, "the steady-state sync was not incremental");
+    for (int i = 0; i < differences.size(); i++) differences.set(i, name + ": " + differences.get(i));
+    return differences;
+  }
+
+  private SyncMetrics sync(String name, boolean fullSync, boolean complete) throws Exception {
+    System.gc();
+    long baseline = this.heap.used();
+    this.heap.reset();
+    SyncMetrics metrics = new SyncMetrics();
+    long start = System.nanoTime();
+    this.engine.run(this.configuration, this.contacts, this.checksums, this.dataDirectory.getPath(), fullSync, null, false, 0, metrics);
+    long nanos = System.nanoTime() - start;
+    metrics.finish();
+    metrics.write(this.dataDirectory.getPath());
+    long peak = this.heap.getPeak();
+    long synced = metrics.get(SyncMetrics.LDAP_ENTRIES) + metrics.get(SyncMetrics.LDAP_ADDS);
+    System.out.println(String.format("%s: %s in %d ms, %.0f entries/s, heap %d MB before, %d MB peak", name, metrics.getProperty("result"), nanos / 1000000,
+        synced * 1e9 / nanos, baseline >> 20, peak >> 20));
+    System.out.println(String.format("  ldap: %d entries, %d gets, %d adds, %d modifies, %d deletes; android: %d inserts, %d updates, %d deletes; %d conflicts",
+        metrics.get(SyncMetrics.LDAP_ENTRIES), metrics.get(SyncMetrics.LDAP_GETS), metrics.get(SyncMetrics.LDAP_ADDS), metrics.get(SyncMetrics.LDAP_MODIFIES),
+        metrics.get(SyncMetrics.LDAP_DELETES), metrics.get(SyncMetrics.ANDROID_INSERTS), metrics.get(SyncMetrics.ANDROID_UPDATES),
+        metrics.get(SyncMetrics.ANDROID_DELETES), metrics.get(SyncMetrics.CONFLICTS)));
+    if (complete != "completed".equals(metrics.getProperty("result"))) {
+      throw new IllegalStateException(String.format(complete ? "The %s sync did not complete, see %s" : "The %s sync completed", name, this.dataDirectory));
+    }
+    return metrics;
+  }
+
+  /*
+   * The differences between the LDAP entries, the contacts and the checksum
+   * entries: each id of the SyntheticDirectory is in all three exactly once,
+   * each mapped field has the same values on both sides, compared regardless
+   * of their order, and the changed fields have their new values.
+   */
+  private List<String> compare() throws Exception {
+    List<String> differences = new ArrayList<String>();
+    Map<String, SearchResultEntry> entries = new HashMap<String, SearchResultEntry>();
+    String idAttribute = this.configuration.IdOnLDAP;
+    for (SearchResultEntry entry : this.directory.getServer().search(this.configuration.basedn, SearchScope.SUB, Filter.createPresenceFilter(idAttribute),
+        this.configuration.getSearchAttributes()).getSearchEntries()) {
+      if (entries.put(entry.getAttributeValue(idAttribute), entry) != null) differences.add(String.format("'%s' is in LDAP twice", entry.getAttributeValue(idAttribute)));
+    }
+    if (entries.size() != this.data.getCount()) differences.add(String.format("%d entries in LDAP instead of %d", entries.size(), this.data.getCount()));
+    for (Map.Entry<String, Map<String, String>> change : this.data.getChanges().entrySet()) {
+      SearchResultEntry entry = entries.get(change.getKey());
+      for (Map.Entry<String, String> value : change.getValue().entrySet()) {
+        if (entry == null || !value.getValue().equals(entry.getAttributeValue(value.getKey()))) {
+          differences.add(String.format("'%s' lost the change of %s to %s", change.getKey(), value.getKey(), value.getValue()));
+        }
+      }
+    }
+    Map<String, Long> people = new HashMap<String, Long>();
+    for (Long personId : this.contacts.getPersonIds()) {
+      String id = (String) this.contacts.getValues(personId).get(this.configuration.IdOnAndroid);
+      if (people.put(id, personId) != null) differences.add(String.format("'%s' is on Android twice", id));
+    }
+    Set<String> names = this.checksums.getNames();
+    for (String id : names) {
+      if (!entries.containsKey(id)) differences.add(String.format("'%s' has checksums but no LDAP entry", id));
+    }
+    for (String id : people.keySet()) {
+      if (!entries.containsKey(id)) differences.add(String.format("'%s' is on Android only", id));
+    }
+    for (Map.Entry<String, SearchResultEntry> entry : entries.entrySet()) {
+      String id = entry.getKey();
+      if (!names.contains(id)) differences.add(String.format("'%s' has no checksums", id));
+      Long personId = people.get(id);
+      if (personId == null) {
+        differences.add(String.format("'%s' is in LDAP only", id));
+        continue;
+      }
+      for (Field field : this.configuration.plan.fields) {
+        List<String> ldapValues = new ArrayList<String>();
+        String[] values = entry.getValue().getAttributeValues(field.ldapName);
+        if (values != null) Collections.addAll(ldapValues, values);
+        List<String> androidValues = new ArrayList<String>();
+        if (field.isDirect()) {
+          Object value = this.contacts.getValues(personId).get(field.androidField.name);
+          if (value != null) androidValues.add(value.toString());
+        } else {
+          for (SubDirEntry subDirEntry : this.contacts.find(personId, field)) {
+            if (subDirEntry.value != null) androidValues.add(subDirEntry.value);
+          }
+        }
+        Collections.sort(ldapValues);
+        Collections.sort(androidValues);
+        if (!ldapValues.equals(androidValues)) differences.add(String.format("'%s' differs in %s: %s in LDAP, %s on Android", id, field.ldapName, ldapValues, androidValues));
+      }
+    }
+    return differences;
+  }
+
+  /*
+   * The configuration shipped with the app, pointed at the embedded server
+   * and with creates, changes and deletes in LDAP and incremental syncs
+   * enabled.
+   */
+  private static void writeConfiguration(File dataDirectory, int port) throws Exception {
+    InputStream in = LoadTest.class.getResourceAsStream("/" + LDAPSyncer.CONFIG_FILE);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int len;
+    while ((len = in.read(buf)) > 0) content.write(buf, 0, len);
+    in.close();
+    String configuration = content.toString("UTF-8").replace("<server>HOST</server>", "<server>127.0.0.1</server>")
+        .replace("<port>389</port>", "<port>" + port + "</port>").replace("BINDDN", BINDDN).replace("PASSWORD", PASSWORD).replace("BASEDN", BASEDN)
+        .replace("<OnLdap>false</OnLdap>", "<OnLdap>true</OnLdap>").replace("<enabled>false</enabled>", "<enabled>true</enabled>");
+    OutputStream out = new FileOutputStream(new File(dataDirectory, LDAPSyncer.CONFIG_FILE));
+    out.write(configuration.getBytes("UTF-8"));
+    out.close();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * The decisions of mergeEntries for contacts existing on both sides: the
+ * record hash comparison that skips unchanged contacts and the decision per
+ * field for the others. The field hashes are computed once in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MergeDecisionBenchmark {
+  @Param({ "default", "ldapWins", "allFromAndroid" })
+  String rules;
+
+  MergeRules mergeRules;
+  FieldHasher hasher = FieldHasher.forName(FieldHasher.MD5);
+  byte[][][] stored, ldap, android;
+  byte[][] storedRecords;
+
+  @Setup
+  public void setup(DatasetState state) {
+    if (this.rules.equals("ldapWins")) {
+      this.mergeRules = new MergeRules(true, true, false, true, false, false);
+    } else if (this.rules.equals("allFromAndroid")) {
+      this.mergeRules = new MergeRules(true, true, false, false, true, false);
+    } else {
+      this.mergeRules = new MergeRules(true, true, false, false, false, false);
+    }
+    this.stored = Dataset.hash(this.hasher, state.data.synced);
+    this.ldap = Dataset.hash(this.hasher, state.data.ldap);
+    this.android = Dataset.hash(this.hasher, state.data.android);
+    this.storedRecords = new byte[this.stored.length][];
+    for (int c = 0; c < this.stored.length; c++) this.storedRecords[c] = this.hasher.record(this.stored[c]);
+  }
+
+  /*
+   * Decides every field of every contact.
+   */
+  @Benchmark
+  public int decideFields() {
+    int changes = 0;
+    for (int c = 0; c < this.stored.length; c++) changes += decide(c);
+    return changes;
+  }
+
+  /*
+   * Compares the record hashes first and only decides the fields of the
+   * contacts that changed.
+   */
+  @Benchmark
+  public int mergeWithRecordHash() {
+    int changes = 0;
+    for (int c = 0; c < this.stored.length; c++) {
+      if (Arrays.equals(this.storedRecords[c], this.hasher.record(this.ldap[c])) && Arrays.equals(this.storedRecords[c], this.hasher.record(this.android[c]))) continue;
+      changes += decide(c);
+    }
+    return changes;
+  }
+
+  private int decide(int contact) {
+    int changes = 0;
+    for (int f = 0; f < this.stored[contact].length; f++) {
+      int decision = this.mergeRules.decide(this.stored[contact][f], this.ldap[contact][f], this.android[contact][f]);
+      if (decision == MergeRules.CONFLICT) break;
+      if (decision != MergeRules.UNCHANGED) changes++;
+    }
+    return changes;
+  }
+}
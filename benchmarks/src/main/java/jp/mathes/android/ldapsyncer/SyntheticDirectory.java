@@ -0,0 +1,186 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import jp.mathes.android.ldapsyncer.Configuration.AndroidField;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.RDN;
+
+/*
+ * A synthetic address book for the mapping of a configuration: LDAP entries
+ * below the basedn, named and identified like the entries the sync creates,
+ * and contacts that exist on Android only. About a tenth of the mapped
+ * fields are empty. The same seed gives the same data. The values given by
+ * change() are kept, a sync must not lose them.
+ */
+public class SyntheticDirectory {
+  private final Configuration configuration;
+  private final Random random;
+  final int entries;
+  final int androidOnly;
+  // contacts created by change()
+  private int created = 0;
+  // the id of each changed entry or contact with the new values by LDAP attribute
+  private final Map<String, Map<String, String>> changes = new HashMap<String, Map<String, String>>();
+
+  public SyntheticDirectory(Configuration configuration, int entries, int androidOnly, long seed) {
+    this.configuration = configuration;
+    this.random = new Random(seed);
+    this.entries = entries;
+    this.androidOnly = androidOnly;
+  }
+
+  static String id(int i) {
+    return String.format("Contact %07d", i);
+  }
+
+  /*
+   * The number of entries once everything is synced.
+   */
+  public int getCount() {
+    return this.entries + this.androidOnly + this.created;
+  }
+
+  public Map<String, Map<String, String>> getChanges() {
+    return Collections.unmodifiableMap(this.changes);
+  }
+
+  public List<Entry> getEntries() throws LDAPException {
+    List<Entry> result = new ArrayList<Entry>(this.entries);
+    for (int i = 0; i < this.entries; i++) {
+      String id = id(i);
+      Entry entry = new Entry(dn(id));
+      entry.addAttribute("objectClass", "top", this.configuration.ldapClass);
+      entry.addAttribute(this.configuration.DNLeafOnLDAP, id);
+      for (String dnLeafCopy : this.configuration.DNLeafOnLDAPCopy) entry.addAttribute(dnLeafCopy, id);
+      for (Field field : this.configuration.plan.fields) {
+        String value = field.ldapName.equals(this.configuration.IdOnLDAP) ? id : value();
+        if (value != null) entry.setAttribute(field.ldapName, value);
+      }
+      result.add(entry);
+    }
+    return result;
+  }
+
+  /*
+   * Creates the contacts that are on Android only.
+   */
+  public void addContacts(ContactStore contacts) {
+    for (int i = this.entries; i < this.entries + this.androidOnly; i++) addContact(contacts, id(i));
+  }
+
+  private void addContact(ContactStore contacts, String id) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(this.configuration.IdOnAndroid, id);
+    Map<String, Map<String, Object>> rows = new HashMap<String, Map<String, Object>>();
+    for (Field field : this.configuration.plan.fields) {
+      if (field.ldapName.equals(this.configuration.IdOnLDAP)) continue;
+      String value = value();
+      if (value == null) continue;
+      if (field.isDirect()) {
+        values.put(field.androidField.name, value);
+      } else {
+        rows.put(field.ldapName, row(field.androidField, value));
+      }
+    }
+    long personId = contacts.createPerson(values);
+    for (Field field : this.configuration.plan.fields) {
+      Map<String, Object> row = rows.get(field.ldapName);
+      if (row == null) continue;
+      row.put(LDAPSyncer.PERSON, personId);
+      contacts.insertRows(field.androidField.directory, Collections.singletonList(row));
+    }
+  }
+
+  /*
+   * Gives one field of each LDAP entry a new value with the change rate, and
+   * one direct field other than the id of each contact whose entry was not
+   * changed, so the changes do not conflict, and creates contacts on Android
+   * only, as many as the change rate of those there are. Returns the number
+   * of changed entries and contacts and of created contacts.
+   */
+  public int[] change(LDAPInterface ldap, InMemoryContactStore contacts, double rate) throws LDAPException {
+    Field[] fields = this.configuration.plan.fields;
+    List<Field> directFields = new ArrayList<Field>();
+    for (Field field : fields) {
+      if (field.isDirect() && !field.androidField.name.equals(this.configuration.IdOnAndroid)) directFields.add(field);
+    }
+    int[] changed = new int[3];
+    Set<String> changedIds = new HashSet<String>();
+    for (int i = 0; i < this.entries + this.androidOnly; i++) {
+      if (this.random.nextDouble() >= rate) continue;
+      Field field = fields[this.random.nextInt(fields.length)];
+      if (field.ldapName.equals(this.configuration.IdOnLDAP)) continue;
+      String value = value(this.random);
+      ldap.modify(dn(id(i)).toString(), new Modification(ModificationType.REPLACE, field.ldapName, value));
+      changed(id(i), field, value);
+      changedIds.add(id(i));
+      changed[0]++;
+    }
+    for (Long personId : directFields.isEmpty() ? Collections.<Long> emptyList() : contacts.getPersonIds()) {
+      String id = (String) contacts.getValues(personId).get(this.configuration.IdOnAndroid);
+      if (this.random.nextDouble() >= rate || changedIds.contains(id)) continue;
+      Field field = directFields.get(this.random.nextInt(directFields.size()));
+      String value = value(this.random);
+      contacts.updatePerson(personId, Collections.<String, Object> singletonMap(field.androidField.name, value));
+      changed(id, field, value);
+      changed[1]++;
+    }
+    for (long i = Math.round(this.androidOnly * rate); i > 0; i--) {
+      addContact(contacts, id(this.entries + this.androidOnly + this.created++));
+      changed[2]++;
+    }
+    return changed;
+  }
+
+  private void changed(String id, Field field, String value) {
+    Map<String, String> values = this.changes.get(id);
+    if (values == null) {
+      values = new HashMap<String, String>();
+      this.changes.put(id, values);
+    }
+    values.put(field.ldapName, value);
+  }
+
+  private DN dn(String id) throws LDAPException {
+    return new DN(new RDN(this.configuration.DNLeafOnLDAP, id), new DN(this.configuration.basedn));
+  }
+
+  private String value() {
+    return this.random.nextInt(10) == 0 ? null : value(this.random);
+  }
+
+  private static String value(Random random) {
+    return Dataset.value(random, 4 + random.nextInt(28));
+  }
+
+  /*
+   * A subdirectory row as the sync writes it.
+   */
+  private static Map<String, Object> row(AndroidField androidField, String value) {
+    Map<String, Object> row = new HashMap<String, Object>();
+    row.put(androidField.name, value);
+    if (androidField.typeCode != Configuration.NO_CODE) row.put(LDAPSyncer.TYPE, androidField.typeCode);
+    if (androidField.kindCode != Configuration.NO_CODE) row.put(LDAPSyncer.KIND, androidField.kindCode);
+    if (androidField.typeLabel != null && androidField.typeLabel.length() > 0) row.put(LDAPSyncer.LABEL, androidField.typeLabel);
+    return row;
+  }
+}
@@ -18,10 +18,13 @@ public final class R {
         public static final int button_startSync=0x7f070001;
         public static final int button_stopSync=0x7f070002;
         public static final int menu_cleanChecksum=0x7f070008;
-        public static final int menu_help=0x7f070009;
+        public static final int menu_fullSync=0x7f070009;
+        public static final int menu_help=0x7f07000c;
         public static final int menu_initDir=0x7f070007;
         public static final int menu_preferences=0x7f070006;
-        public static final int menu_quit=0x7f07000a;
+        public static final int menu_preview=0x7f07000b;
+        public static final int menu_quit=0x7f07000d;
+        public static final int menu_syncPartition=0x7f07000a;
         public static final int textViewSeparator1=0x7f070000;
         public static final int textViewSeparator2=0x7f070003;
         public static final int textView_Log=0x7f070005;
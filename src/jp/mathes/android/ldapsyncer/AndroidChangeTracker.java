@@ -0,0 +1,158 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.provider.Contacts;
+
+/*
+ * Tells which Android contacts were not modified since the last sync, so
+ * their field hashes can be taken from the checksum DB instead of reading and
+ * hashing the contact and its subdirectories.
+ *
+ * The contacts provider of the supported platforms keeps no version of a
+ * contact, so its changes are observed instead: while the LDAPSyncer service
+ * runs, a ContentObserver on the provider counts the change notifications of
+ * the people and their subdirectories. The contacts whose checksums were
+ * confirmed to describe them as read at the start of a sync are kept in a
+ * journal in the data directory, with the observer and its count at that
+ * start. The next sync takes them as unchanged if the same observer was not
+ * notified since. A notification does not tell which contact changed, so
+ * any change, the writes of the sync included, and a restart of the service
+ * have all contacts hashed again next time. A contact written by the sync,
+ * or whose checksums were reverted, is left out of the journal.
+ */
+public class AndroidChangeTracker {
+  public static final String JOURNAL_FILE = "android-changes.dat";
+
+  private static final int JOURNAL_FORMAT = 2;
+
+  private static final Object LOCK = new Object();
+  private static ContentObserver observer = null;
+  // identifies the registered observer in the journal, 0 while there is none
+  private static long observerId = 0;
+  private static long notifications = 0;
+
+  private final File journal;
+  private final long session;
+  private final long changes;
+  private final Set<Long> journaled = new HashSet<Long>();
+  private final Map<String, Long> confirmed = new HashMap<String, Long>();
+  private final Set<String> rejected = new HashSet<String>();
+
+  /*
+   * Starts observing the contacts provider, called when the service is
+   * created.
+   */
+  static public void register(ContentResolver resolver) {
+    synchronized (LOCK) {
+      if (observer != null) return;
+      observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+          synchronized (LOCK) {
+            notifications++;
+          }
+        }
+      };
+      Random random = new Random();
+      while (observerId == 0) observerId = random.nextLong();
+      notifications = 0;
+      resolver.registerContentObserver(Contacts.CONTENT_URI, true, observer);
+    }
+  }
+
+  static public void unregister(ContentResolver resolver) {
+    synchronized (LOCK) {
+      if (observer == null) return;
+      resolver.unregisterContentObserver(observer);
+      observer = null;
+      observerId = 0;
+    }
+  }
+
+  public AndroidChangeTracker(String dataDirectory) throws IOException {
+    this.journal = new File(dataDirectory + File.separator + JOURNAL_FILE);
+    synchronized (LOCK) {
+      this.session = observerId;
+      this.changes = notifications;
+    }
+    if (this.session != 0) readJournal();
+  }
+
+  public static void delete(String dataDirectory) {
+    File file = new File(dataDirectory + File.separator + JOURNAL_FILE);
+    if (file.exists()) file.delete();
+  }
+
+  /*
+   * True if the checksums of the contact were confirmed by the last sync and
+   * the contacts did not change since.
+   */
+  public boolean isUnchanged(long personId) {
+    return this.journaled.contains(personId);
+  }
+
+  /*
+   * The checksums of the entry describe the contact as read at the start of
+   * the sync.
+   */
+  public void confirm(String id, long personId) {
+    if (!this.rejected.contains(id)) this.confirmed.put(id, personId);
+  }
+
+  /*
+   * The contact of the entry was written or its checksums were reverted.
+   */
+  public void reject(String id) {
+    this.rejected.add(id);
+    this.confirmed.remove(id);
+  }
+
+  public void save() throws IOException {
+    if (this.session == 0) return;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.journal)));
+    try {
+      out.writeInt(JOURNAL_FORMAT);
+      out.writeLong(this.session);
+      out.writeLong(this.changes);
+      out.writeInt(this.confirmed.size());
+      for (Long personId : this.confirmed.values()) out.writeLong(personId);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void readJournal() throws IOException {
+    if (!this.journal.exists()) return;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journal)));
+    try {
+      if (in.readInt() != JOURNAL_FORMAT || in.readLong() != this.session || in.readLong() != this.changes) return;
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) this.journaled.add(in.readLong());
+    } catch (EOFException e) {
+      // a truncated journal is ignored, all contacts are hashed again
+      this.journaled.clear();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.Contacts.People;
+
+/*
+ * Loads all Android contacts with a single query and indexes the cursor
+ * positions by the configured identifier, so matching LDAP entries does not
+ * need a provider round-trip per entry.
+ */
+public class AndroidContactIndex {
+  private final Cursor cursor;
+  private final int idColumn;
+  private final Map<String, Integer> positions = new HashMap<String, Integer>();
+  private final Map<String, Integer> counts = new HashMap<String, Integer>();
+  private final Set<String> seen = new HashSet<String>();
+
+  public AndroidContactIndex(ContentResolver resolver, Configuration configuration) {
+    this.cursor = resolver.query(People.CONTENT_URI, null, null, null, null);
+    this.idColumn = this.cursor.getColumnIndex(configuration.IdOnAndroid);
+    this.cursor.moveToFirst();
+    while (!this.cursor.isAfterLast()) {
+      String id = this.cursor.getString(this.idColumn);
+      if (id != null) {
+        Integer count = this.counts.get(id);
+        if (count == null) {
+          this.positions.put(id, this.cursor.getPosition());
+          this.counts.put(id, 1);
+        } else {
+          this.counts.put(id, count + 1);
+        }
+      }
+      this.cursor.moveToNext();
+    }
+  }
+
+  /*
+   * Marks the id as seen in LDAP and moves the cursor to the first Android
+   * record with that id. Returns the number of Android records with this id,
+   * the cursor is only positioned if this is greater than zero.
+   */
+  public int match(String id) {
+    this.seen.add(id);
+    Integer count = this.counts.get(id);
+    if (count == null) return 0;
+    this.cursor.moveToPosition(this.positions.get(id));
+    return count;
+  }
+
+  /*
+   * Positions of all Android records whose id was not seen in LDAP, in cursor
+   * order. Must be called after all LDAP entries have been matched.
+   */
+  public List<Integer> unseenPositions() {
+    List<Integer> result = new LinkedList<Integer>();
+    this.cursor.moveToFirst();
+    while (!this.cursor.isAfterLast()) {
+      if (!this.seen.contains(this.cursor.getString(this.idColumn))) result.add(this.cursor.getPosition());
+      this.cursor.moveToNext();
+    }
+    return result;
+  }
+
+  public Cursor getCursor() {
+    return this.cursor;
+  }
+
+  public void close() {
+    this.cursor.close();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Contacts;
+import android.provider.Contacts.People;
+
+/*
+ * The contacts provider of the device. All people are read with one query
+ * (AndroidContactIndex), the subdirectories when they are first needed
+ * (SubdirIndex), the unchanged contacts are told by the AndroidChangeTracker.
+ */
+public class AndroidContactStore implements ContactStore {
+  private final ContentResolver resolver;
+  private final String dataDirectory;
+  private MappingPlan plan;
+  private AndroidContactIndex index;
+  private SubdirIndex subdirs;
+  private AndroidChangeTracker changes;
+  private Cursor cursor;
+  private int personIdColumn;
+  private int idColumn;
+  private int[] directColumns;
+
+  public AndroidContactStore(ContentResolver resolver, String dataDirectory) {
+    this.resolver = resolver;
+    this.dataDirectory = dataDirectory;
+  }
+
+  public void load(Configuration configuration, SyncMetrics metrics) throws IOException {
+    this.plan = configuration.plan;
+    this.index = new AndroidContactIndex(this.resolver, configuration);
+    this.subdirs = new SubdirIndex(this.resolver, configuration, metrics);
+    this.changes = new AndroidChangeTracker(this.dataDirectory);
+    metrics.count(SyncMetrics.ANDROID_QUERIES);
+    this.cursor = this.index.getCursor();
+    this.personIdColumn = this.cursor.getColumnIndex(People._ID);
+    this.idColumn = this.cursor.getColumnIndex(configuration.IdOnAndroid);
+    this.directColumns = this.plan.resolveDirectColumns(this.cursor);
+  }
+
+  public int match(String id) {
+    return this.index.match(id);
+  }
+
+  public ContactSnapshot current() {
+    String[] directValues = new String[this.directColumns.length];
+    for (int i = 0; i < directValues.length; i++) directValues[i] = this.directColumns[i] < 0 ? null : this.cursor.getString(this.directColumns[i]);
+    return new ContactSnapshot(this.subdirs, this.plan, this.cursor.getLong(this.personIdColumn), this.cursor.getString(this.idColumn), directValues);
+  }
+
+  public Iterator<ContactSnapshot> unseen() {
+    final Iterator<Integer> positions = this.index.unseenPositions().iterator();
+    return new Iterator<ContactSnapshot>() {
+      public boolean hasNext() {
+        return positions.hasNext();
+      }
+
+      public ContactSnapshot next() {
+        cursor.moveToPosition(positions.next());
+        return current();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public boolean isUnchanged(long personId) {
+    return this.changes.isUnchanged(personId);
+  }
+
+  public void confirm(String id, long personId) {
+    this.changes.confirm(id, personId);
+  }
+
+  public void reject(String id) {
+    this.changes.reject(id);
+  }
+
+  public void save() throws IOException {
+    this.changes.save();
+  }
+
+  /*
+   * New people are added to the "My Contacts" group.
+   */
+  public long createPerson(Map<String, Object> values) {
+    Uri uri = People.createPersonInMyContactsGroup(this.resolver, toContentValues(values));
+    return uri == null ? -1 : ContentUris.parseId(uri);
+  }
+
+  public boolean updatePerson(long personId, Map<String, Object> values) {
+    return this.resolver.update(Uri.withAppendedPath(People.CONTENT_URI, Long.toString(personId)), toContentValues(values), null, null) > 0;
+  }
+
+  public int insertRows(String directory, List<Map<String, Object>> rows) {
+    ContentValues[] values = new ContentValues[rows.size()];
+    for (int i = 0; i < values.length; i++) values[i] = toContentValues(rows.get(i));
+    return this.resolver.bulkInsert(Uri.withAppendedPath(Contacts.CONTENT_URI, directory), values);
+  }
+
+  public void deleteRows(String directory, long[] rowIds) {
+    delete(Uri.withAppendedPath(Contacts.CONTENT_URI, directory), rowIds);
+  }
+
+  public void deletePeople(long[] personIds) {
+    delete(People.CONTENT_URI, personIds);
+  }
+
+  public void close() {
+    if (this.index != null) this.index.close();
+    this.index = null;
+    this.subdirs = null;
+    this.changes = null;
+    this.cursor = null;
+  }
+
+  /*
+   * One "_id IN" delete for all ids.
+   */
+  private void delete(Uri uri, long[] ids) {
+    StringBuilder where = new StringBuilder(LDAPSyncer.ID).append(" IN (");
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) where.append(',');
+      where.append(ids[i]);
+    }
+    where.append(')');
+    this.resolver.delete(uri, where.toString(), null);
+  }
+
+  private static ContentValues toContentValues(Map<String, Object> values) {
+    ContentValues contentValues = new ContentValues();
+    for (Map.Entry<String, Object> value : values.entrySet()) {
+      if (value.getValue() instanceof Integer) {
+        contentValues.put(value.getKey(), (Integer) value.getValue());
+      } else if (value.getValue() instanceof Long) {
+        contentValues.put(value.getKey(), (Long) value.getValue());
+      } else {
+        contentValues.put(value.getKey(), (String) value.getValue());
+      }
+    }
+    return contentValues;
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Collects the writes to the contacts and applies them to the ContactStore
+ * in groups. The contacts API of this platform has no applyBatch, so the
+ * batch is made of the bulk operations it offers: subdirectory rows are
+ * inserted with one bulk insert per directory, rows and people are deleted
+ * with one delete per table and all direct field updates of a person are
+ * merged into a single update. New people are created first, rows added to them refer to
+ * the Person handle and get its id once it is known.
+ *
+ * Every operation belongs to an entry (the id of the contact). If any
+ * operation of an entry fails the entry is reported to the FailureListener,
+ * a failing bulk operation fails all entries it contained.
+ *
+ * The metrics count the people and rows inserted, updated and deleted and,
+ * separately, the calls of the store they took. The time of a flush counts
+ * as writes.
+ */
+public class AndroidWriteBatcher {
+
+  public interface FailureListener {
+    void entryFailed(String name);
+  }
+
+  /*
+   * A person that exists or will be created by the next flush.
+   */
+  static public class Person {
+    long id;
+    final String entry;
+    final Map<String, Object> values;
+
+    private Person(long id, String entry, Map<String, Object> values) {
+      this.id = id;
+      this.entry = entry;
+      this.values = values;
+    }
+  }
+
+  private static class RowInsert {
+    final Person person;
+    final Map<String, Object> values;
+
+    RowInsert(Person person, Map<String, Object> values) {
+      this.person = person;
+      this.values = values;
+    }
+  }
+
+  private static class Delete {
+    final long id;
+    final String entry;
+
+    Delete(long id, String entry) {
+      this.id = id;
+      this.entry = entry;
+    }
+  }
+
+  private final ContactStore store;
+  private final int batchSize;
+  private final SyncMetrics metrics;
+  private final FailureListener listener;
+  private final List<Person> newPeople = new ArrayList<Person>();
+  private final Map<Long, Person> updates = new LinkedHashMap<Long, Person>();
+  private final Map<String, List<Delete>> rowDeletes = new LinkedHashMap<String, List<Delete>>();
+  private final Map<String, List<RowInsert>> rowInserts = new LinkedHashMap<String, List<RowInsert>>();
+  private final List<Delete> peopleDeletes = new ArrayList<Delete>();
+  private final Set<String> failed = new HashSet<String>();
+  private int pending = 0;
+
+  public AndroidWriteBatcher(ContactStore store, int batchSize, SyncMetrics metrics, FailureListener listener) {
+    this.store = store;
+    this.batchSize = batchSize;
+    this.metrics = metrics;
+    this.listener = listener;
+  }
+
+  /*
+   * A batcher that only collects operations, they are written by handing
+   * them to another batcher with drainTo().
+   */
+  public AndroidWriteBatcher() {
+    this(null, Integer.MAX_VALUE, null, null);
+  }
+
+  public Person existingPerson(long id, String entry) {
+    return new Person(id, entry, null);
+  }
+
+  /*
+   * Queues the creation of a person in the "My Contacts" group with the given
+   * direct values.
+   */
+  public Person createPerson(String entry, Map<String, Object> values) {
+    Person person = new Person(-1, entry, values);
+    this.newPeople.add(person);
+    this.pending++;
+    return person;
+  }
+
+  public void updatePerson(Person person, String column, String value) {
+    Person update = this.updates.get(person.id);
+    if (update == null) {
+      update = new Person(person.id, person.entry, new LinkedHashMap<String, Object>());
+      this.updates.put(person.id, update);
+      this.pending++;
+    }
+    update.values.put(column, value);
+  }
+
+  public void deletePerson(Person person) {
+    this.peopleDeletes.add(new Delete(person.id, person.entry));
+    this.pending++;
+  }
+
+  public void insertRow(Person person, String directory, Map<String, Object> values) {
+    List<RowInsert> inserts = this.rowInserts.get(directory);
+    if (inserts == null) {
+      inserts = new ArrayList<RowInsert>();
+      this.rowInserts.put(directory, inserts);
+    }
+    inserts.add(new RowInsert(person, values));
+    this.pending++;
+  }
+
+  public void deleteRow(Person person, String directory, long rowId) {
+    List<Delete> deletes = this.rowDeletes.get(directory);
+    if (deletes == null) {
+      deletes = new ArrayList<Delete>();
+      this.rowDeletes.put(directory, deletes);
+    }
+    deletes.add(new Delete(rowId, person.entry));
+    this.pending++;
+  }
+
+  /*
+   * Moves all queued operations to the given batcher, updates of a person
+   * queued there already are merged.
+   */
+  public void drainTo(AndroidWriteBatcher target) {
+    target.newPeople.addAll(this.newPeople);
+    for (Person update : this.updates.values()) {
+      Person queued = target.updates.get(update.id);
+      if (queued == null) {
+        target.updates.put(update.id, update);
+        target.pending++;
+      } else {
+        queued.values.putAll(update.values);
+      }
+    }
+    for (Map.Entry<String, List<Delete>> deletes : this.rowDeletes.entrySet()) {
+      List<Delete> queued = target.rowDeletes.get(deletes.getKey());
+      if (queued == null) {
+        target.rowDeletes.put(deletes.getKey(), deletes.getValue());
+      } else {
+        queued.addAll(deletes.getValue());
+      }
+    }
+    for (Map.Entry<String, List<RowInsert>> inserts : this.rowInserts.entrySet()) {
+      List<RowInsert> queued = target.rowInserts.get(inserts.getKey());
+      if (queued == null) {
+        target.rowInserts.put(inserts.getKey(), inserts.getValue());
+      } else {
+        queued.addAll(inserts.getValue());
+      }
+    }
+    target.peopleDeletes.addAll(this.peopleDeletes);
+    target.pending += this.pending - this.updates.size();
+    this.newPeople.clear();
+    this.updates.clear();
+    this.rowDeletes.clear();
+    this.rowInserts.clear();
+    this.peopleDeletes.clear();
+    this.pending = 0;
+  }
+
+  /*
+   * The queued operations, each as type, entry and detail, see SyncPlan.
+   */
+  public List<String[]> getOperations() {
+    List<String[]> operations = new ArrayList<String[]>();
+    for (Person person : this.newPeople) operations.add(new String[] { SyncPlan.ANDROID_CREATE, person.entry, describe(person.values) });
+    for (Person update : this.updates.values()) operations.add(new String[] { SyncPlan.ANDROID_UPDATE, update.entry, update.id + ": " + describe(update.values) });
+    for (Map.Entry<String, List<Delete>> deletes : this.rowDeletes.entrySet()) {
+      for (Delete delete : deletes.getValue()) operations.add(new String[] { SyncPlan.ANDROID_DELETE_ROW, delete.entry, deletes.getKey() + "/" + delete.id });
+    }
+    for (Map.Entry<String, List<RowInsert>> inserts : this.rowInserts.entrySet()) {
+      for (RowInsert insert : inserts.getValue()) operations.add(new String[] { SyncPlan.ANDROID_INSERT_ROW, insert.person.entry, inserts.getKey() + ": " + describe(insert.values) });
+    }
+    for (Delete delete : this.peopleDeletes) operations.add(new String[] { SyncPlan.ANDROID_DELETE, delete.entry, Long.toString(delete.id) });
+    return operations;
+  }
+
+  public boolean isEmpty() {
+    return this.pending == 0;
+  }
+
+  public boolean isFull() {
+    return this.pending >= this.batchSize;
+  }
+
+  public void flush() {
+    if (this.pending == 0) return;
+    if (LDAPSyncer.DEBUG) System.out.println(String.format("Writing %d operations to Android", this.pending));
+    long start = SyncMetrics.start();
+    for (Person person : this.newPeople) {
+      try {
+        this.metrics.count(SyncMetrics.ANDROID_INSERTS);
+        this.metrics.count(SyncMetrics.ANDROID_WRITE_CALLS);
+        person.id = this.store.createPerson(person.values);
+        if (person.id < 0) fail(person.entry);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        fail(person.entry);
+      }
+    }
+    for (Person update : this.updates.values()) {
+      try {
+        this.metrics.count(SyncMetrics.ANDROID_UPDATES);
+        this.metrics.count(SyncMetrics.ANDROID_WRITE_CALLS);
+        if (!this.store.updatePerson(update.id, update.values)) fail(update.entry);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        fail(update.entry);
+      }
+    }
+    for (Map.Entry<String, List<Delete>> deletes : this.rowDeletes.entrySet()) {
+      delete(deletes.getKey(), deletes.getValue());
+    }
+    for (Map.Entry<String, List<RowInsert>> inserts : this.rowInserts.entrySet()) {
+      insert(inserts.getKey(), inserts.getValue());
+    }
+    delete(null, this.peopleDeletes);
+    this.newPeople.clear();
+    this.updates.clear();
+    this.rowDeletes.clear();
+    this.rowInserts.clear();
+    this.peopleDeletes.clear();
+    this.failed.clear();
+    this.pending = 0;
+    this.metrics.time(SyncMetrics.PHASE_WRITES, start);
+  }
+
+  private void insert(String directory, List<RowInsert> inserts) {
+    List<Map<String, Object>> values = new ArrayList<Map<String, Object>>(inserts.size());
+    Set<String> entries = new HashSet<String>();
+    for (RowInsert insert : inserts) {
+      // rows of a person that could not be created are dropped
+      if (insert.person.id < 0) continue;
+      insert.values.put(LDAPSyncer.PERSON, insert.person.id);
+      values.add(insert.values);
+      entries.add(insert.person.entry);
+    }
+    if (values.isEmpty()) return;
+    try {
+      this.metrics.count(SyncMetrics.ANDROID_INSERTS, values.size());
+      this.metrics.count(SyncMetrics.ANDROID_WRITE_CALLS);
+      if (this.store.insertRows(directory, values) == values.size()) return;
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    for (String entry : entries) fail(entry);
+  }
+
+  /*
+   * Deletes subdirectory rows, people if the directory is null.
+   */
+  private void delete(String directory, List<Delete> deletes) {
+    if (deletes.isEmpty()) return;
+    long[] ids = new long[deletes.size()];
+    for (int i = 0; i < ids.length; i++) ids[i] = deletes.get(i).id;
+    try {
+      this.metrics.count(SyncMetrics.ANDROID_DELETES, ids.length);
+      this.metrics.count(SyncMetrics.ANDROID_WRITE_CALLS);
+      if (directory == null) {
+        this.store.deletePeople(ids);
+      } else {
+        this.store.deleteRows(directory, ids);
+      }
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      for (Delete delete : deletes) fail(delete.entry);
+    }
+  }
+
+  private static String describe(Map<String, Object> values) {
+    StringBuilder description = new StringBuilder();
+    for (Map.Entry<String, Object> value : values.entrySet()) {
+      description.append(description.length() == 0 ? "" : ", ").append(value.getKey()).append('=').append(value.getValue());
+    }
+    return description.toString();
+  }
+
+  private void fail(String entry) {
+    if (this.failed.add(entry)) this.listener.entryFailed(entry);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * In-memory copy of the checksum store. It is read once at the start of a
+ * sync, all lookups are served from memory and only the entries that were
+ * modified are written back by flush().
+ */
+public class ChecksumCache {
+  // pseudo field holding the record hash of an entry, '#' is not allowed in LDAP attribute names
+  public static final String RECORD = "#record";
+  // pseudo field holding the name of the partition the entry was last found in, absent for the default partition
+  public static final String PARTITION = "#partition";
+
+  private final Map<String, Map<String, byte[]>> checksums = new HashMap<String, Map<String, byte[]>>();
+  private final Set<String> dirty = new HashSet<String>();
+  // state of the dirty entries as of the last flush, null for entries that did not exist
+  private final Map<String, Map<String, byte[]>> originals = new HashMap<String, Map<String, byte[]>>();
+
+  public static ChecksumCache load(ChecksumStore store, Configuration configuration, SyncMetrics metrics) {
+    long start = SyncMetrics.start();
+    final ChecksumCache cache = new ChecksumCache();
+    // share the field name instances of the mapping instead of keeping one string per row
+    final Map<String, String> fieldNames = new HashMap<String, String>();
+    for (String fieldName : configuration.mapping.keySet()) fieldNames.put(fieldName, fieldName);
+    int count = store.read(new ChecksumStore.Visitor() {
+      public void checksum(String name, String field, byte[] digest) {
+        String sharedField = fieldNames.get(field);
+        cache.entry(name).put(sharedField != null ? sharedField : field, digest);
+      }
+    });
+    metrics.count(SyncMetrics.CHECKSUM_READS, count);
+    metrics.time(SyncMetrics.PHASE_CHECKSUM_LOAD, start);
+    return cache;
+  }
+
+  public byte[] get(String name, String field) {
+    Map<String, byte[]> entry = this.checksums.get(name);
+    return entry == null ? null : entry.get(field);
+  }
+
+  public boolean exists(String name) {
+    Map<String, byte[]> entry = this.checksums.get(name);
+    return entry != null && !entry.isEmpty();
+  }
+
+  public String getPartition(String name) {
+    byte[] partition = get(name, PARTITION);
+    if (partition == null) return "";
+    try {
+      return new String(partition, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void setPartition(String name, String partition) {
+    if (partition.length() == 0) {
+      remove(name, PARTITION);
+      return;
+    }
+    try {
+      put(name, PARTITION, partition.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void put(String name, String field, byte[] checksum) {
+    touch(name);
+    entry(name).put(field, checksum);
+  }
+
+  public void remove(String name, String field) {
+    Map<String, byte[]> entry = this.checksums.get(name);
+    if (entry != null && entry.containsKey(field)) {
+      touch(name);
+      entry.remove(field);
+    }
+  }
+
+  public void remove(String name) {
+    if (!this.checksums.containsKey(name)) return;
+    touch(name);
+    this.checksums.remove(name);
+  }
+
+  /*
+   * A copy of the checksums of an entry, null if there are none.
+   */
+  public Map<String, byte[]> copy(String name) {
+    Map<String, byte[]> entry = this.checksums.get(name);
+    return entry == null ? null : new HashMap<String, byte[]>(entry);
+  }
+
+  /*
+   * Replaces all checksums of an entry, null removes the entry.
+   */
+  public void replace(String name, Map<String, byte[]> entry) {
+    touch(name);
+    if (entry == null) {
+      this.checksums.remove(name);
+    } else {
+      this.checksums.put(name, entry);
+    }
+  }
+
+  /*
+   * Drops all changes to an entry since the last flush, used when the writes
+   * the new checksums describe did not succeed.
+   */
+  public void revert(String name) {
+    if (!this.dirty.remove(name)) return;
+    Map<String, byte[]> original = this.originals.remove(name);
+    if (original == null) {
+      this.checksums.remove(name);
+    } else {
+      this.checksums.put(name, original);
+    }
+  }
+
+  /*
+   * Writes all modified entries back, each entry is replaced as a whole and
+   * committed together.
+   */
+  public void flush(ChecksumStore store) {
+    for (String name : this.dirty) {
+      Map<String, byte[]> entry = this.checksums.get(name);
+      if (entry == null) {
+        store.remove(name);
+      } else {
+        store.clear(name);
+        for (Map.Entry<String, byte[]> field : entry.entrySet()) store.put(name, field.getKey(), field.getValue());
+      }
+      store.entryFinished();
+    }
+    store.commit();
+    this.dirty.clear();
+    this.originals.clear();
+  }
+
+  private void touch(String name) {
+    if (!this.dirty.add(name)) return;
+    Map<String, byte[]> entry = this.checksums.get(name);
+    this.originals.put(name, entry == null ? null : new HashMap<String, byte[]>(entry));
+  }
+
+  private Map<String, byte[]> entry(String name) {
+    Map<String, byte[]> entry = this.checksums.get(name);
+    if (entry == null) {
+      entry = new HashMap<String, byte[]>(4);
+      this.checksums.put(name, entry);
+    }
+    return entry;
+  }
+}
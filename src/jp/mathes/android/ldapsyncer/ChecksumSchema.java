@@ -0,0 +1,133 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/*
+ * Layout of the checksum DB. Version 1 stored name, field and the hex digest
+ * as strings for every row. Version 2 keeps the names in the dictionary
+ * tables entry and field and stores the digests as blobs in a table clustered
+ * on a single integer key (entry id << 16 | field id), the rowid layout older
+ * SQLite versions offer instead of WITHOUT ROWID tables. Version 3 records
+ * the hash algorithm the digests were computed with in the meta table.
+ */
+public class ChecksumSchema {
+  public static final int VERSION = 3;
+  public static final int FIELD_BITS = 16;
+  public static final long FIELD_MASK = (1 << FIELD_BITS) - 1;
+
+  // the statements of the current version, shared with the benchmarks
+  static final String[] CREATE_TABLES = { "create table entry (id INTEGER PRIMARY KEY, name VARCHAR UNIQUE)",
+      "create table field (id INTEGER PRIMARY KEY, name VARCHAR UNIQUE)", "create table checksum (key INTEGER PRIMARY KEY, digest BLOB)" };
+  static final String SELECT_CHECKSUMS = "select e.name, f.name, c.digest from checksum c, entry e, field f where e.id = (c.key >> " + FIELD_BITS
+      + ") and f.id = (c.key & " + FIELD_MASK + ")";
+  static final String INSERT_CHECKSUM = "insert or replace into checksum (key, digest) values (?,?)";
+  static final String DELETE_CHECKSUM = "delete from checksum where key=?";
+  static final String DELETE_ENTRY_CHECKSUMS = "delete from checksum where key between ? and ?";
+  static final String DELETE_ENTRY = "delete from entry where id=?";
+  static final String INSERT_ENTRY = "insert into entry (name) values (?)";
+  static final String INSERT_FIELD = "insert into field (name) values (?)";
+
+  public static void create(SQLiteDatabase checksumDb, String hashAlgorithm) {
+    createVersion2(checksumDb);
+    createMeta(checksumDb, hashAlgorithm);
+    checksumDb.setVersion(VERSION);
+  }
+
+  public static String getHashAlgorithm(SQLiteDatabase checksumDb) {
+    Cursor c = checksumDb.rawQuery("select value from meta where key='hash'", null);
+    String result = c.moveToFirst() ? c.getString(0) : null;
+    c.close();
+    return result;
+  }
+
+  /*
+   * Brings an existing checksum DB to the current version, returns false if
+   * the DB is newer than this version of the program.
+   */
+  public static boolean upgrade(SQLiteDatabase checksumDb, String hashAlgorithm) {
+    int version = checksumDb.getVersion();
+    if (version == VERSION) return true;
+    if (version > VERSION) return false;
+    checksumDb.beginTransaction();
+    try {
+      if (version == 0 && !tableExists(checksumDb, "checksum")) {
+        create(checksumDb, hashAlgorithm);
+      } else {
+        if (version == 0) migrateFromVersion1(checksumDb);
+        // everything written before version 3 used the tab-joined MD5
+        createMeta(checksumDb, FieldHasher.MD5_LEGACY);
+        checksumDb.setVersion(VERSION);
+      }
+      checksumDb.setTransactionSuccessful();
+    } finally {
+      checksumDb.endTransaction();
+    }
+    return true;
+  }
+
+  public static long key(long entryId, int fieldId) {
+    return (entryId << FIELD_BITS) | fieldId;
+  }
+
+  public static byte[] toDigest(String hex) {
+    if (hex == null) return null;
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    return result;
+  }
+
+  public static String toHex(byte[] digest) {
+    if (digest == null) return null;
+    StringBuilder result = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16));
+      result.append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
+
+  private static void migrateFromVersion1(SQLiteDatabase checksumDb) {
+    checksumDb.execSQL("alter table checksum rename to checksum_v1");
+    createVersion2(checksumDb);
+    checksumDb.execSQL("insert into entry (name) select distinct name from checksum_v1");
+    checksumDb.execSQL("insert into field (name) select distinct field from checksum_v1");
+    SQLiteStatement insert = checksumDb.compileStatement(INSERT_CHECKSUM);
+    Cursor c = checksumDb.rawQuery("select e.id, f.id, c.checksum from checksum_v1 c, entry e, field f where e.name = c.name and f.name = c.field", null);
+    c.moveToFirst();
+    while (!c.isAfterLast()) {
+      insert.bindLong(1, key(c.getLong(0), c.getInt(1)));
+      if (c.isNull(2) || c.getString(2).equals("null")) {
+        insert.bindNull(2);
+      } else {
+        insert.bindBlob(2, toDigest(c.getString(2)));
+      }
+      insert.execute();
+      c.moveToNext();
+    }
+    c.close();
+    insert.close();
+    checksumDb.execSQL("drop table checksum_v1");
+  }
+
+  private static void createVersion2(SQLiteDatabase checksumDb) {
+    for (String sql : CREATE_TABLES) checksumDb.execSQL(sql);
+  }
+
+  private static void createMeta(SQLiteDatabase checksumDb, String hashAlgorithm) {
+    checksumDb.execSQL("create table meta (key VARCHAR PRIMARY KEY, value VARCHAR)");
+    checksumDb.execSQL("insert into meta values ('hash', ?)", new Object[] { hashAlgorithm });
+  }
+
+  private static boolean tableExists(SQLiteDatabase checksumDb, String table) {
+    Cursor c = checksumDb.rawQuery("select count(*) from sqlite_master where type='table' and name=?", new String[] { table });
+    boolean result = c.moveToFirst() && c.getInt(0) > 0;
+    c.close();
+    return result;
+  }
+}
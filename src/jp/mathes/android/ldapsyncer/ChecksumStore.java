@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+/*
+ * Where the checksums of the last sync are kept: the checksum DB on the
+ * device. The ChecksumCache reads all of them at the start of a sync and
+ * writes the changed entries back, each entry is replaced as a whole. Writes
+ * are only made durable at an entry boundary (entryFinished() or commit()),
+ * so an entry is either written completely or not at all.
+ */
+public interface ChecksumStore {
+
+  public interface Visitor {
+    void checksum(String name, String field, byte[] digest);
+  }
+
+  /*
+   * The hash algorithm the stored digests were computed with, see
+   * FieldHasher.
+   */
+  String getHashAlgorithm();
+
+  /*
+   * Hands all stored checksums to the visitor, returns their number.
+   */
+  int read(Visitor visitor);
+
+  /*
+   * The number of entries committed together.
+   */
+  int getBatchSize();
+
+  void put(String name, String field, byte[] digest);
+
+  void remove(String name, String field);
+
+  /*
+   * Removes all checksums of an entry.
+   */
+  void clear(String name);
+
+  void remove(String name);
+
+  /*
+   * Marks the end of all writes for one entry, commits if the batch is full.
+   */
+  void entryFinished();
+
+  void commit();
+
+  /*
+   * Drops all writes since the last commit.
+   */
+  void rollback();
+
+  void close();
+}
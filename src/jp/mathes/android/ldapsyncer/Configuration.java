@@ -6,35 +6,107 @@ package jp.mathes.android.ldapsyncer;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.Map;
+import java.util.Set;
 
 import jp.mathes.android.ldapsyncer.exceptions.ConfigurationParsingException;
 
-import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.interpol.ConstantLookup;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.provider.Contacts;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.Organizations;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.Maps;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchScope;
 
 public class Configuration {
 
   static public final boolean DEBUG = false;
-  static public final ConstantLookup lookup = new ConstantLookup();
+  static public final int NO_CODE = -1;
+
+  /*
+   * The constants of the contacts provider that may be used in the mapping.
+   */
+  private static final Map<String, String> CONSTANTS = new HashMap<String, String>();
+  static {
+    constant("android.provider.Contacts.KIND_EMAIL", Contacts.KIND_EMAIL);
+    constant("android.provider.Contacts.KIND_POSTAL", Contacts.KIND_POSTAL);
+    constant("android.provider.Contacts.KIND_IM", Contacts.KIND_IM);
+    constant("android.provider.Contacts.KIND_ORGANIZATION", Contacts.KIND_ORGANIZATION);
+    constant("android.provider.Contacts.KIND_PHONE", Contacts.KIND_PHONE);
+    constant("android.provider.Contacts$People.NAME", People.NAME);
+    constant("android.provider.Contacts$People.NOTES", People.NOTES);
+    constant("android.provider.Contacts$People.DISPLAY_NAME", People.DISPLAY_NAME);
+    constant("android.provider.Contacts$People$Phones.CONTENT_DIRECTORY", People.Phones.CONTENT_DIRECTORY);
+    constant("android.provider.Contacts$People$ContactMethods.CONTENT_DIRECTORY", People.ContactMethods.CONTENT_DIRECTORY);
+    constant("android.provider.Contacts$Phones.NUMBER", Phones.NUMBER);
+    constant("android.provider.Contacts$Phones.LABEL", Phones.LABEL);
+    constant("android.provider.Contacts$Phones.TYPE_CUSTOM", Phones.TYPE_CUSTOM);
+    constant("android.provider.Contacts$Phones.TYPE_HOME", Phones.TYPE_HOME);
+    constant("android.provider.Contacts$Phones.TYPE_MOBILE", Phones.TYPE_MOBILE);
+    constant("android.provider.Contacts$Phones.TYPE_WORK", Phones.TYPE_WORK);
+    constant("android.provider.Contacts$Phones.TYPE_FAX_WORK", Phones.TYPE_FAX_WORK);
+    constant("android.provider.Contacts$Phones.TYPE_FAX_HOME", Phones.TYPE_FAX_HOME);
+    constant("android.provider.Contacts$Phones.TYPE_PAGER", Phones.TYPE_PAGER);
+    constant("android.provider.Contacts$Phones.TYPE_OTHER", Phones.TYPE_OTHER);
+    constant("android.provider.Contacts$ContactMethods.DATA", ContactMethods.DATA);
+    constant("android.provider.Contacts$ContactMethods.LABEL", ContactMethods.LABEL);
+    constant("android.provider.Contacts$ContactMethods.TYPE_CUSTOM", ContactMethods.TYPE_CUSTOM);
+    constant("android.provider.Contacts$ContactMethods.TYPE_HOME", ContactMethods.TYPE_HOME);
+    constant("android.provider.Contacts$ContactMethods.TYPE_WORK", ContactMethods.TYPE_WORK);
+    constant("android.provider.Contacts$ContactMethods.TYPE_OTHER", ContactMethods.TYPE_OTHER);
+    constant("android.provider.Contacts$Organizations.CONTENT_DIRECTORY", Organizations.CONTENT_DIRECTORY);
+    constant("android.provider.Contacts$Organizations.COMPANY", Organizations.COMPANY);
+    constant("android.provider.Contacts$Organizations.TITLE", Organizations.TITLE);
+    constant("android.provider.Contacts$Organizations.LABEL", Organizations.LABEL);
+    constant("android.provider.Contacts$Organizations.TYPE_CUSTOM", Organizations.TYPE_CUSTOM);
+    constant("android.provider.Contacts$Organizations.TYPE_WORK", Organizations.TYPE_WORK);
+    constant("android.provider.Contacts$Organizations.TYPE_OTHER", Organizations.TYPE_OTHER);
+  }
 
+  /*
+   * An Android field as configured, plus the codes and flags derived from it
+   * when the configuration is compiled.
+   */
   static public class AndroidField {
     String name, type, kind, typeLabel, directory;
+    int typeCode = NO_CODE, kindCode = NO_CODE;
+    boolean inSubdir, customType;
+
+    private void set(String element, String value) {
+      if (element.equals("directory")) this.directory = resolve(value);
+      else if (element.equals("name")) this.name = resolve(value);
+      else if (element.equals("type")) this.type = resolve(value);
+      else if (element.equals("kind")) this.kind = resolve(value);
+      else if (element.equals("typeLabel")) this.typeLabel = value;
+    }
+
+    private void compile(String ldapField) throws ConfigurationParsingException {
+      this.inSubdir = this.directory != null && this.directory.length() > 0;
+      if (this.type != null && this.type.length() > 0) this.typeCode = toInt("type of " + ldapField, this.type);
+      if (this.kind != null && this.kind.length() > 0) this.kindCode = toInt("kind of " + ldapField, this.kind);
+      this.customType = this.typeCode == People.TYPE_CUSTOM;
+    }
 
     @Override
     public int hashCode() {
@@ -51,8 +123,60 @@ public class Configuration {
     }
   }
 
+  /*
+   * A part of the directory that is searched on a connection of its own: the
+   * entries below its bases (the search bases if none are given) matching
+   * its filter (the search filter if none is given) and, if a range is given,
+   * whose id is at least idFrom and less than idBelow in the ordering of the
+   * id attribute. The default partition has the empty name.
+   */
+  static public class Partition {
+    String name = "";
+    String filter, idFrom, idBelow;
+    List<String> bases = new LinkedList<String>();
+
+    public String getName() {
+      return this.name;
+    }
+
+    /*
+     * Whether the id is in the range, compared ignoring case like the
+     * ordering of most id attributes.
+     */
+    public boolean containsId(String id) {
+      if (id == null) return false;
+      return (this.idFrom == null || id.compareToIgnoreCase(this.idFrom) >= 0) && (this.idBelow == null || id.compareToIgnoreCase(this.idBelow) < 0);
+    }
+
+    private void set(String element, String value) {
+      if (element.equals("filter")) this.filter = value;
+      else if (element.equals("idFrom")) this.idFrom = value;
+      else if (element.equals("idBelow")) this.idBelow = value;
+      else if (element.equals("base") && value.length() > 0) this.bases.add(value);
+    }
+  }
+
   String server, binddn, password, basedn, IdOnAndroid, IdOnLDAP, DNLeafOnLDAP, ldapClass = "person";
   int port;
+  int checksumBatchSize = 200;
+  String checksumProfile = SQLiteChecksumStore.PROFILE_DEFAULT;
+  String hashAlgorithm = FieldHasher.MD5;
+  int androidBatchSize = 100;
+  int ldapWriteWindow = 8;
+  int connectTimeout = 10000;
+  int responseTimeout = 60000;
+  int poolSize = 2;
+  int healthCheckInterval = 60000;
+  int retries = 3;
+  int retryDelay = 2000;
+  int mergeWorkers = 2;
+  int mergeQueueSize = 64;
+  int searchPageSize = 500;
+  String searchFilter = "(objectclass=person)";
+  String searchScope = "sub";
+  boolean incremental = false;
+  String markAttribute = "modifyTimestamp";
+  int fullSyncDays = 7;
 
   boolean deleteOnAndroid = true;
   boolean deleteOnLDAP = true;
@@ -67,6 +191,11 @@ public class Configuration {
 
   List<String> DNLeafOnLDAPCopy = new LinkedList<String>();
   BiMap<String, Configuration.AndroidField> mapping = HashBiMap.create();
+  List<String> fieldOrder = new ArrayList<String>();
+  List<String> searchBases = new LinkedList<String>();
+  List<Partition> partitions = new ArrayList<Partition>();
+  MappingPlan plan;
+  MergeRules rules;
 
   public boolean validate() {
     if (DEBUG) {
@@ -88,143 +217,278 @@ public class Configuration {
       System.out.println("this.createOnLDAP: " + (this.createOnLDAP ? "yes" : "no"));
       System.out.println("this.changeOnAndroid: " + (this.changeOnAndroid ? "yes" : "no"));
       System.out.println("this.changeOnLDAP: " + (this.changeOnLDAP ? "yes" : "no"));
+      System.out.println("this.checksumBatchSize: " + this.checksumBatchSize);
+      System.out.println("this.checksumProfile: " + this.checksumProfile);
+      System.out.println("this.hashAlgorithm: " + this.hashAlgorithm);
+      System.out.println("this.androidBatchSize: " + this.androidBatchSize);
+      System.out.println("this.ldapWriteWindow: " + this.ldapWriteWindow);
+      System.out.println("this.connectTimeout: " + this.connectTimeout);
+      System.out.println("this.responseTimeout: " + this.responseTimeout);
+      System.out.println("this.poolSize: " + this.poolSize);
+      System.out.println("this.healthCheckInterval: " + this.healthCheckInterval);
+      System.out.println("this.retries: " + this.retries);
+      System.out.println("this.retryDelay: " + this.retryDelay);
+      System.out.println("this.mergeWorkers: " + this.mergeWorkers);
+      System.out.println("this.mergeQueueSize: " + this.mergeQueueSize);
+      System.out.println("this.searchPageSize: " + this.searchPageSize);
+      System.out.println("this.searchFilter: " + this.searchFilter);
+      System.out.println("this.searchScope: " + this.searchScope);
+      System.out.println("this.searchBases: " + this.searchBases);
+      for (Partition partition : this.partitions) {
+        System.out.println("this.partition: '" + partition.name + "' " + partition.bases + " " + partition.filter + " [" + partition.idFrom + ", " + partition.idBelow + ")");
+      }
+      System.out.println("this.incremental: " + (this.incremental ? "yes" : "no"));
+      System.out.println("this.markAttribute: " + this.markAttribute);
+      System.out.println("this.fullSyncDays: " + this.fullSyncDays);
     }
     return this.server != null && this.server.length() > 0 && this.binddn != null && this.binddn.length() > 0 && this.password != null && this.password.length() > 0 && this.basedn != null
         && this.basedn.length() > 0 && this.IdOnAndroid != null && this.IdOnAndroid.length() > 0 && this.IdOnLDAP != null && this.IdOnLDAP.length() > 0 && this.DNLeafOnLDAP != null
-        && this.DNLeafOnLDAP.length() > 0 && (!(this.AndroidAlwaysWins && this.LDAPAlwaysWins)) && (!(this.allChangesFromAndroid && this.allChangesFromLDAP));
+        && this.DNLeafOnLDAP.length() > 0 && (!(this.AndroidAlwaysWins && this.LDAPAlwaysWins)) && (!(this.allChangesFromAndroid && this.allChangesFromLDAP)) && this.checksumBatchSize > 0
+        && this.androidBatchSize > 0 && this.ldapWriteWindow > 0 && this.connectTimeout >= 0 && this.responseTimeout >= 0 && this.poolSize > 0 && this.retries >= 0
+        && this.retryDelay >= 0 && this.mergeWorkers >= 0 && this.mergeQueueSize > 0 && this.searchPageSize >= 0 && FieldHasher.isSupported(this.hashAlgorithm)
+        && getSearchScope() != null && isValidFilter(this.searchFilter) && arePartitionsValid() && (!this.incremental || (this.markAttribute != null && this.markAttribute.length() > 0));
+  }
+
+  /*
+   * The attributes requested from LDAP, only those that are mapped or used to
+   * identify an entry.
+   */
+  public String[] getSearchAttributes() {
+    Set<String> attributes = new LinkedHashSet<String>(this.mapping.keySet());
+    attributes.add(this.IdOnLDAP);
+    attributes.add(this.DNLeafOnLDAP);
+    attributes.addAll(this.DNLeafOnLDAPCopy);
+    if (this.incremental) attributes.add(this.markAttribute);
+    return attributes.toArray(new String[attributes.size()]);
+  }
+
+  /*
+   * Identifies the entries selected by the search of a partition, a
+   * high-water mark is only valid for the search it was taken from.
+   */
+  public String getSearchKey(Partition partition) throws LDAPException {
+    return this.markAttribute + " " + this.searchScope + " " + getFilter(partition) + " " + partition.bases;
+  }
+
+  public String getFilter(Partition partition) throws LDAPException {
+    String filter = partition.filter != null ? partition.filter : this.searchFilter;
+    if (partition.idFrom == null && partition.idBelow == null) return filter;
+    List<Filter> filters = new ArrayList<Filter>();
+    filters.add(Filter.create(filter));
+    if (partition.idFrom != null) filters.add(Filter.createGreaterOrEqualFilter(this.IdOnLDAP, partition.idFrom));
+    if (partition.idBelow != null) filters.add(Filter.createNOTFilter(Filter.createGreaterOrEqualFilter(this.IdOnLDAP, partition.idBelow)));
+    return Filter.createANDFilter(filters).toString();
   }
 
-  public static Configuration readConfiguration(String dataDirectory) throws ConfigurationException, ParserConfigurationException, FileNotFoundException, SAXException, IOException,
-      ConfigurationParsingException {
+  /*
+   * The node new LDAP entries are created below: the basedn, or the first
+   * base of the partition a new contact is synced in, so the next sync of
+   * the partition finds it.
+   */
+  public String getNewEntryBase(String partitionName) {
+    Partition partition = partitionName == null ? null : getPartition(partitionName);
+    return partition == null ? this.basedn : partition.bases.get(0);
+  }
+
+  public Partition getPartition(String name) {
+    for (Partition partition : this.partitions) {
+      if (partition.name.equals(name)) return partition;
+    }
+    return null;
+  }
+
+  private boolean arePartitionsValid() {
+    Set<String> names = new HashSet<String>();
+    for (Partition partition : this.partitions) {
+      if (!names.add(partition.name) || partition.bases.isEmpty()) return false;
+      if (partition.filter != null && !isValidFilter(partition.filter)) return false;
+    }
+    return !this.partitions.isEmpty();
+  }
+
+  public SearchScope getSearchScope() {
+    if ("base".equals(this.searchScope)) return SearchScope.BASE;
+    if ("one".equals(this.searchScope)) return SearchScope.ONE;
+    if ("sub".equals(this.searchScope)) return SearchScope.SUB;
+    return null;
+  }
+
+  private static boolean isValidFilter(String filter) {
+    try {
+      Filter.create(filter);
+      return true;
+    } catch (LDAPException e) {
+      return false;
+    }
+  }
+
+  /*
+   * Reads and compiles the configuration file, LDAPSyncer keeps the result in
+   * a ConfigurationCache.
+   */
+  public static Configuration readConfiguration(String dataDirectory) throws IOException, XmlPullParserException, ConfigurationParsingException {
+    InputStream in = new FileInputStream(new File(dataDirectory + File.separator + LDAPSyncer.CONFIG_FILE));
+    try {
+      return compile(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Parses the configuration in a single pass of a pull parser and resolves
+   * all that is used per entry up front: the Android constants, the type and
+   * kind codes and flags of the mapped fields, the field order and the
+   * partitions. The result is not modified afterwards, so it can be shared by
+   * all syncs until the file changes.
+   */
+  public static Configuration compile(InputStream in) throws IOException, XmlPullParserException, ConfigurationParsingException {
     Configuration configuration = new Configuration();
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    Document dom = builder.parse(new FileInputStream(new File(dataDirectory + File.separator + LDAPSyncer.CONFIG_FILE)));
-    NodeList childNodes = dom.getDocumentElement().getChildNodes();
-    for (int i = 0; i < childNodes.getLength(); i++) {
-      if (childNodes.item(i).getNodeName().equals("ldap")) {
-        NodeList LDAPchildNodes = childNodes.item(i).getChildNodes();
-        for (int j = 0; j < LDAPchildNodes.getLength(); j++) {
-          configuration.server = getTrimmedStringIfEqual("server", LDAPchildNodes, j, configuration.server);
-          configuration.binddn = getTrimmedStringIfEqual("binddn", LDAPchildNodes, j, configuration.binddn);
-          configuration.password = getTrimmedStringIfEqual("password", LDAPchildNodes, j, configuration.password);
-          configuration.basedn = getTrimmedStringIfEqual("basedn", LDAPchildNodes, j, configuration.basedn);
-          configuration.port = getIntIfEqual("port", LDAPchildNodes, j, configuration.port);
-        }
-      } else if (childNodes.item(i).getNodeName().equals("settings")) {
-        NodeList settingsChildNodes = childNodes.item(i).getChildNodes();
-        for (int j = 0; j < settingsChildNodes.getLength(); j++) {
-          if (settingsChildNodes.item(j).getNodeName().equals("identifier")) {
-            NodeList identifierChildNotes = settingsChildNodes.item(j).getChildNodes();
-            for (int k = 0; k < identifierChildNotes.getLength(); k++) {
-              configuration.IdOnAndroid = getLookupedTrimmedStringIfEqual("OnAndroid", identifierChildNotes, k, configuration.IdOnAndroid);
-              configuration.IdOnLDAP = getTrimmedStringIfEqual("OnLdap", identifierChildNotes, k, configuration.IdOnLDAP);
-              configuration.DNLeafOnLDAP = getTrimmedStringIfEqual("DNLeafOnLdap", identifierChildNotes, k, configuration.DNLeafOnLDAP);
-              configuration.ldapClass = getTrimmedStringIfEqual("ldapClass", identifierChildNotes, k, configuration.ldapClass);
-              String dnLeafCopy = getTrimmedStringIfEqual("DNLeafOnLdapCopy", identifierChildNotes, k, null);
-              if (dnLeafCopy != null && dnLeafCopy.length() > 0) configuration.DNLeafOnLDAPCopy.add(dnLeafCopy);
-            }
-          } else if (settingsChildNodes.item(j).getNodeName().equals("delete")) {
-            NodeList deleteChildNodes = settingsChildNodes.item(j).getChildNodes();
-            for (int k = 0; k < deleteChildNodes.getLength(); k++) {
-              configuration.deleteOnAndroid = getBoolIfEqual("OnAndroid", deleteChildNodes, k, configuration.deleteOnAndroid);
-              configuration.deleteOnLDAP = getBoolIfEqual("OnLdap", deleteChildNodes, k, configuration.deleteOnLDAP);
-            }
-          } else if (settingsChildNodes.item(j).getNodeName().equals("create")) {
-            NodeList createChildNodes = settingsChildNodes.item(j).getChildNodes();
-            for (int k = 0; k < createChildNodes.getLength(); k++) {
-              configuration.createOnAndroid = getBoolIfEqual("OnAndroid", createChildNodes, k, configuration.createOnAndroid);
-              configuration.createOnLDAP = getBoolIfEqual("OnLdap", createChildNodes, k, configuration.createOnLDAP);
-            }
-          } else if (settingsChildNodes.item(j).getNodeName().equals("change")) {
-            NodeList createChildNodes = settingsChildNodes.item(j).getChildNodes();
-            for (int k = 0; k < createChildNodes.getLength(); k++) {
-              configuration.changeOnAndroid = getBoolIfEqual("OnAndroid", createChildNodes, k, configuration.changeOnAndroid);
-              configuration.changeOnLDAP = getBoolIfEqual("OnLdap", createChildNodes, k, configuration.changeOnLDAP);
-            }
-          } else if (settingsChildNodes.item(j).getNodeName().equals("alwaysWins")) {
-            if (settingsChildNodes.item(j).getChildNodes().item(0).getNodeValue().equals("true")) {
-              if (settingsChildNodes.item(j).getAttributes().getNamedItem("source") != null &&
-                  settingsChildNodes.item(j).getAttributes().getNamedItem("source").getNodeValue().equals("ldap")) {
-                configuration.LDAPAlwaysWins = true;
-              } else if (settingsChildNodes.item(j).getAttributes().getNamedItem("source") != null &&
-                  settingsChildNodes.item(j).getAttributes().getNamedItem("source").getNodeValue().equals("android")) {
-                configuration.AndroidAlwaysWins = true;
-              } else {
-                throw new ConfigurationParsingException("Warning: AlwaysWins element preset, but no or not supported source attribute");
-              }
-            }
-          } else if (settingsChildNodes.item(j).getNodeName().equals("allChangesFrom")) {
-            if (settingsChildNodes.item(j).getChildNodes().item(0).getNodeValue().equals("true")) {
-              if (settingsChildNodes.item(j).getAttributes().getNamedItem("source") != null &&
-                  settingsChildNodes.item(j).getAttributes().getNamedItem("source").getNodeValue().equals("ldap")) {
-                configuration.allChangesFromLDAP = true;
-              } else if (settingsChildNodes.item(j).getAttributes().getNamedItem("source") != null &&
-                  settingsChildNodes.item(j).getAttributes().getNamedItem("source").getNodeValue().equals("android")) {
-                configuration.allChangesFromAndroid = true;
-              } else {
-                throw new ConfigurationParsingException("Warning: AllChangesFrom element preset, but no or not supported source attribute");
-              }
-            }
-          }
+    XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+    parser.setInput(in, null);
+    // path of the current element below the root, e.g. "settings/search/base"
+    String path = null;
+    StringBuilder text = new StringBuilder();
+    String source = null;
+    Partition partition = null;
+    AndroidField androidField = null;
+    String ldapField = null;
+    for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+      if (event == XmlPullParser.START_TAG) {
+        path = path == null ? "" : path.length() == 0 ? parser.getName() : path + "/" + parser.getName();
+        text.setLength(0);
+        if (path.equals("settings/alwaysWins") || path.equals("settings/allChangesFrom")) {
+          source = parser.getAttributeValue(null, "source");
+        } else if (path.equals("settings/partitions/partition")) {
+          partition = new Partition();
+          String name = parser.getAttributeValue(null, "name");
+          if (name != null) partition.name = name.trim();
+        } else if (path.equals("mapping/attribute")) {
+          androidField = new AndroidField();
+          ldapField = null;
         }
-      } else if (childNodes.item(i).getNodeName().equals("mapping")) {
-        NodeList mappingChildNodes = childNodes.item(i).getChildNodes();
-        for (int j = 0; j < mappingChildNodes.getLength(); j++) {
-          if (mappingChildNodes.item(j).getNodeName().equals("attribute")) {
-            AndroidField androidField = new AndroidField();
-            String ldapField = null;
-            NodeList attributeChildNodes = mappingChildNodes.item(j).getChildNodes();
-            for (int k = 0; k < attributeChildNodes.getLength(); k++) {
-              ldapField = getTrimmedStringIfEqual("ldap", attributeChildNodes, k, ldapField);
-              if (attributeChildNodes.item(k).getNodeName().equals("android")) {
-                NodeList androidChildNodes = attributeChildNodes.item(k).getChildNodes();
-                for (int l = 0; l < androidChildNodes.getLength(); l++) {
-                  androidField.directory = getLookupedTrimmedStringIfEqual("directory", androidChildNodes, l, androidField.directory);
-                  androidField.name = getLookupedTrimmedStringIfEqual("name", androidChildNodes, l, androidField.name);
-                  androidField.type = getLookupedTrimmedStringIfEqual("type", androidChildNodes, l, androidField.type);
-                  androidField.kind = getLookupedTrimmedStringIfEqual("kind", androidChildNodes, l, androidField.kind);
-                  androidField.typeLabel = getTrimmedStringIfEqual("typeLabel", androidChildNodes, l, androidField.typeLabel);
-                }
-              }
-            }
-            if (ldapField != null) configuration.mapping.put(ldapField, androidField);
-          }
+      } else if (event == XmlPullParser.TEXT) {
+        text.append(parser.getText());
+      } else if (event == XmlPullParser.END_TAG) {
+        String value = text.toString().trim();
+        text.setLength(0);
+        if (path.equals("settings/partitions/partition")) {
+          configuration.partitions.add(partition);
+        } else if (path.startsWith("settings/partitions/partition/")) {
+          partition.set(path.substring(path.lastIndexOf('/') + 1), value);
+        } else if (path.equals("mapping/attribute")) {
+          if (ldapField != null) configuration.mapping.put(ldapField, androidField);
+        } else if (path.equals("mapping/attribute/ldap")) {
+          ldapField = value;
+        } else if (path.startsWith("mapping/attribute/android/")) {
+          androidField.set(path.substring(path.lastIndexOf('/') + 1), value);
+        } else {
+          configuration.set(path, value, source);
         }
+        int slash = path.lastIndexOf('/');
+        path = slash >= 0 ? path.substring(0, slash) : path.length() > 0 ? "" : null;
       }
     }
+    for (Map.Entry<String, AndroidField> mapped : configuration.mapping.entrySet()) mapped.getValue().compile(mapped.getKey());
+    configuration.fieldOrder.addAll(configuration.mapping.keySet());
+    Collections.sort(configuration.fieldOrder);
+    configuration.plan = new MappingPlan(configuration.fieldOrder, configuration.mapping);
+    configuration.rules = new MergeRules(configuration.changeOnAndroid, configuration.changeOnLDAP, configuration.AndroidAlwaysWins, configuration.LDAPAlwaysWins,
+        configuration.allChangesFromAndroid, configuration.allChangesFromLDAP);
+    if (configuration.searchBases.isEmpty() && configuration.basedn != null) configuration.searchBases.add(configuration.basedn);
+    if (configuration.partitions.isEmpty()) configuration.partitions.add(new Partition());
+    for (Partition each : configuration.partitions) {
+      if (each.bases.isEmpty()) each.bases.addAll(configuration.searchBases);
+      each.bases = Collections.unmodifiableList(each.bases);
+    }
+    configuration.mapping = Maps.unmodifiableBiMap(configuration.mapping);
+    configuration.fieldOrder = Collections.unmodifiableList(configuration.fieldOrder);
+    configuration.DNLeafOnLDAPCopy = Collections.unmodifiableList(configuration.DNLeafOnLDAPCopy);
+    configuration.searchBases = Collections.unmodifiableList(configuration.searchBases);
+    configuration.partitions = Collections.unmodifiableList(configuration.partitions);
     return configuration;
   }
 
-  private static String getTrimmedStringIfEqual(String comperator, NodeList nodes, int counter, String oldValue) {
-    if (nodes.item(counter).getNodeName().equals(comperator)) {
-      return nodes.item(counter).getChildNodes().item(0).getNodeValue().trim();
-    } else {
-      return oldValue;
+  private void set(String element, String value, String source) throws ConfigurationParsingException {
+    if (element.equals("ldap/server")) this.server = value;
+    else if (element.equals("ldap/binddn")) this.binddn = value;
+    else if (element.equals("ldap/password")) this.password = value;
+    else if (element.equals("ldap/basedn")) this.basedn = value;
+    else if (element.equals("ldap/port")) this.port = toInt(element, value);
+    else if (element.equals("settings/identifier/OnAndroid")) this.IdOnAndroid = resolve(value);
+    else if (element.equals("settings/identifier/OnLdap")) this.IdOnLDAP = value;
+    else if (element.equals("settings/identifier/DNLeafOnLdap")) this.DNLeafOnLDAP = value;
+    else if (element.equals("settings/identifier/ldapClass")) this.ldapClass = value;
+    else if (element.equals("settings/identifier/DNLeafOnLdapCopy")) {
+      if (value.length() > 0) this.DNLeafOnLDAPCopy.add(value);
+    }
+    else if (element.equals("settings/delete/OnAndroid")) this.deleteOnAndroid = value.equals("true");
+    else if (element.equals("settings/delete/OnLdap")) this.deleteOnLDAP = value.equals("true");
+    else if (element.equals("settings/create/OnAndroid")) this.createOnAndroid = value.equals("true");
+    else if (element.equals("settings/create/OnLdap")) this.createOnLDAP = value.equals("true");
+    else if (element.equals("settings/change/OnAndroid")) this.changeOnAndroid = value.equals("true");
+    else if (element.equals("settings/change/OnLdap")) this.changeOnLDAP = value.equals("true");
+    else if (element.equals("settings/checksumDb/batchSize")) this.checksumBatchSize = toInt(element, value);
+    else if (element.equals("settings/checksumDb/profile")) this.checksumProfile = value;
+    else if (element.equals("settings/checksumDb/hash")) this.hashAlgorithm = value;
+    else if (element.equals("settings/androidWrites/batchSize")) this.androidBatchSize = toInt(element, value);
+    else if (element.equals("settings/ldapWrites/window")) this.ldapWriteWindow = toInt(element, value);
+    else if (element.equals("settings/connection/connectTimeout")) this.connectTimeout = toInt(element, value);
+    else if (element.equals("settings/connection/responseTimeout")) this.responseTimeout = toInt(element, value);
+    else if (element.equals("settings/connection/poolSize")) this.poolSize = toInt(element, value);
+    else if (element.equals("settings/connection/healthCheckInterval")) this.healthCheckInterval = toInt(element, value);
+    else if (element.equals("settings/connection/retries")) this.retries = toInt(element, value);
+    else if (element.equals("settings/connection/retryDelay")) this.retryDelay = toInt(element, value);
+    else if (element.equals("settings/merge/workers")) this.mergeWorkers = toInt(element, value);
+    else if (element.equals("settings/merge/queueSize")) this.mergeQueueSize = toInt(element, value);
+    else if (element.equals("settings/search/pageSize")) this.searchPageSize = toInt(element, value);
+    else if (element.equals("settings/search/filter")) this.searchFilter = value;
+    else if (element.equals("settings/search/scope")) this.searchScope = value;
+    else if (element.equals("settings/search/base")) {
+      if (value.length() > 0) this.searchBases.add(value);
+    }
+    else if (element.equals("settings/incremental/enabled")) this.incremental = value.equals("true");
+    else if (element.equals("settings/incremental/markAttribute")) this.markAttribute = value;
+    else if (element.equals("settings/incremental/fullSyncDays")) this.fullSyncDays = toInt(element, value);
+    else if (element.equals("settings/alwaysWins") && value.equals("true")) {
+      if ("ldap".equals(source)) this.LDAPAlwaysWins = true;
+      else if ("android".equals(source)) this.AndroidAlwaysWins = true;
+      else throw new ConfigurationParsingException("Warning: AlwaysWins element preset, but no or not supported source attribute");
+    }
+    else if (element.equals("settings/allChangesFrom") && value.equals("true")) {
+      if ("ldap".equals(source)) this.allChangesFromLDAP = true;
+      else if ("android".equals(source)) this.allChangesFromAndroid = true;
+      else throw new ConfigurationParsingException("Warning: AllChangesFrom element preset, but no or not supported source attribute");
     }
   }
 
-  private static String getLookupedTrimmedStringIfEqual(String comperator, NodeList nodes, int counter, String oldValue) {
-    if (nodes.item(counter).getNodeName().equals(comperator)) {
-      return lookup.lookup(nodes.item(counter).getChildNodes().item(0).getNodeValue().trim());
-    } else {
-      return oldValue;
+  static int toInt(String element, String value) throws ConfigurationParsingException {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new ConfigurationParsingException(String.format("Element '%s' must be a number, found '%s'", element, value));
     }
   }
 
-  private static int getIntIfEqual(String comperator, NodeList nodes, int counter, int oldValue) {
-    if (nodes.item(counter).getNodeName().equals(comperator)) {
-      return Integer.valueOf(nodes.item(counter).getChildNodes().item(0).getNodeValue().trim());
-    } else {
-      return oldValue;
+  /*
+   * Resolves a constant name like android.provider.Contacts$People.NAME to its
+   * value, the constants of the contacts provider from a table, others by
+   * reflection. A value that is no constant name is taken as it is.
+   */
+  static String resolve(String value) {
+    String constant = CONSTANTS.get(value);
+    if (constant != null) return constant;
+    int dot = value.lastIndexOf('.');
+    if (dot <= 0) return value;
+    try {
+      return String.valueOf(Class.forName(value.substring(0, dot)).getField(value.substring(dot + 1)).get(null));
+    } catch (Exception e) {
+      if (DEBUG) System.out.println(String.format("'%s' is no constant, using it as value", value));
+      return value;
     }
   }
 
-  private static boolean getBoolIfEqual(String comperator, NodeList nodes, int counter, boolean oldValue) {
-    if (nodes.item(counter).getNodeName().equals(comperator)) {
-      return nodes.item(counter).getChildNodes().item(0).getNodeValue().trim().equals("true");
-    } else {
-      return oldValue;
-    }
+  private static void constant(String name, Object value) {
+    CONSTANTS.put(name, String.valueOf(value));
   }
 }
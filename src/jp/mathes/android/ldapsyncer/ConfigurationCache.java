@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import jp.mathes.android.ldapsyncer.exceptions.ConfigurationParsingException;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+/*
+ * Keeps the compiled configuration between syncs. The file is only read
+ * again when its modification time or size changed, and only compiled again
+ * when its content changed as well.
+ */
+public class ConfigurationCache {
+  private String path;
+  private long lastModified = -1;
+  private long length = -1;
+  private byte[] digest;
+  private Configuration configuration;
+
+  synchronized public Configuration get(String dataDirectory) throws IOException, XmlPullParserException, ConfigurationParsingException {
+    File file = new File(dataDirectory + File.separator + LDAPSyncer.CONFIG_FILE);
+    long lastModified = file.lastModified();
+    long length = file.length();
+    boolean samePath = file.getPath().equals(this.path);
+    if (this.configuration != null && samePath && lastModified == this.lastModified && length == this.length) return this.configuration;
+    byte[] content = read(file);
+    byte[] digest = digest(content);
+    if (this.configuration == null || !samePath || !Arrays.equals(digest, this.digest)) {
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Compiling configuration '%s'", file));
+      // a file that does not compile is read again by the next call
+      this.configuration = null;
+      this.configuration = Configuration.compile(new ByteArrayInputStream(content));
+    }
+    this.path = file.getPath();
+    this.lastModified = lastModified;
+    this.length = length;
+    this.digest = digest;
+    return this.configuration;
+  }
+
+  /*
+   * Forgets the compiled configuration, e.g. after the file was replaced.
+   */
+  synchronized public void invalidate() {
+    this.configuration = null;
+    this.digest = null;
+  }
+
+  private static byte[] read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buf = new byte[4096];
+      int len;
+      while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] digest(byte[] content) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(content);
+    } catch (NoSuchAlgorithmException e) {
+      // compare the content itself
+      return content;
+    }
+  }
+}
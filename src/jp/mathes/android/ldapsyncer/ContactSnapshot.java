@@ -0,0 +1,97 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.mathes.android.ldapsyncer.Configuration.AndroidField;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+
+/*
+ * The values of one contact as read at the start of its merge. The direct
+ * columns are copied when the snapshot is taken, the subdirectory entries of
+ * a field are looked up the first time the field is needed and kept for all
+ * further hash, compare and copy steps.
+ */
+public class ContactSnapshot {
+
+  static public class SubDirEntry {
+    AndroidField androidField;
+    long id;
+    String value;
+
+    public SubDirEntry(AndroidField androidField, long id, String value) {
+      this.androidField = androidField;
+      this.id = id;
+      this.value = value;
+    }
+  }
+
+  /*
+   * Looks up the subdirectory entries of a person matching a field, called
+   * by the merge workers concurrently.
+   */
+  public interface Subdirs {
+    List<SubDirEntry> find(long personId, Field field);
+  }
+
+  private final Subdirs subdirs;
+  private final long personId;
+  private final String id;
+  private final String[] directValues;
+  // by subdirectory slot, filled on first use
+  private final List<List<SubDirEntry>> subdirEntries;
+
+  /*
+   * The direct values are indexed by the direct slots of the mapping plan.
+   */
+  public ContactSnapshot(Subdirs subdirs, MappingPlan plan, long personId, String id, String[] directValues) {
+    this.subdirs = subdirs;
+    this.personId = personId;
+    this.id = id;
+    this.directValues = directValues;
+    this.subdirEntries = new ArrayList<List<SubDirEntry>>(plan.subdirFieldCount);
+    for (int i = 0; i < plan.subdirFieldCount; i++) this.subdirEntries.add(null);
+  }
+
+  public long getPersonId() {
+    return this.personId;
+  }
+
+  public String getId() {
+    return this.id;
+  }
+
+  /*
+   * Value of a field stored directly at the person.
+   */
+  public String getValue(Field field) {
+    return field.isDirect() ? this.directValues[field.directSlot] : null;
+  }
+
+  public List<SubDirEntry> getSubdirEntries(Field field) {
+    List<SubDirEntry> result = this.subdirEntries.get(field.subdirSlot);
+    if (result == null) {
+      result = this.subdirs.find(this.personId, field);
+      this.subdirEntries.set(field.subdirSlot, result);
+    }
+    return result;
+  }
+
+  /*
+   * All values of a field, a direct field has at most one.
+   */
+  public List<String> getValues(Field field) {
+    List<String> result = new ArrayList<String>();
+    if (field.isDirect()) {
+      String value = getValue(field);
+      if (value != null) result.add(value);
+    } else {
+      for (SubDirEntry subdirEntry : getSubdirEntries(field)) result.add(subdirEntry.value);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The contacts the LDAP entries are synced with, the contacts provider on
+ * the device. load() reads them at the start of a sync, the LDAP entries are
+ * then matched by id and the contacts never matched are visited at the end.
+ * The snapshots are read by the merge workers concurrently, all other calls
+ * come from the syncing thread.
+ *
+ * The store also tracks which contacts were not modified since their
+ * checksums were last confirmed, see AndroidChangeTracker.
+ *
+ * Changes are handed over by the AndroidWriteBatcher in the bulk operations
+ * below, the values are Strings, Integers and Longs by column. An operation
+ * that fails throws a RuntimeException.
+ */
+public interface ContactStore {
+  void load(Configuration configuration, SyncMetrics metrics) throws IOException;
+
+  /*
+   * Marks the id as seen in LDAP and returns the number of contacts with
+   * that id, the first of them becomes the current contact if there is one.
+   */
+  int match(String id);
+
+  ContactSnapshot current();
+
+  /*
+   * The contacts whose id was not seen in LDAP, to be called after all LDAP
+   * entries have been matched.
+   */
+  Iterator<ContactSnapshot> unseen();
+
+  boolean isUnchanged(long personId);
+
+  void confirm(String id, long personId);
+
+  void reject(String id);
+
+  /*
+   * Keeps the confirmed contacts for the next sync.
+   */
+  void save() throws IOException;
+
+  /*
+   * Returns the id of the new person, -1 if it was not created.
+   */
+  long createPerson(Map<String, Object> values);
+
+  /*
+   * False if there is no such person.
+   */
+  boolean updatePerson(long personId, Map<String, Object> values);
+
+  /*
+   * Inserts rows into a subdirectory, the person column names their person.
+   * Returns the number of rows inserted.
+   */
+  int insertRows(String directory, List<Map<String, Object>> rows);
+
+  void deleteRows(String directory, long[] rowIds);
+
+  /*
+   * Deletes the people with all their subdirectory rows.
+   */
+  void deletePeople(long[] personIds);
+
+  void close();
+}
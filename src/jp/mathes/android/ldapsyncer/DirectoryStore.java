@@ -0,0 +1,22 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/*
+ * The LDAP directory the contacts are synced with. A sync takes a bound
+ * connection for each partition it searches and one for its writes, and
+ * gives each back when it is done, as defunct if the sync did not complete
+ * as an operation may still be running on it.
+ */
+public interface DirectoryStore {
+  LDAPConnection getConnection(Configuration configuration) throws LDAPException;
+
+  void release(LDAPConnection conn, boolean defunct);
+
+  void close();
+}
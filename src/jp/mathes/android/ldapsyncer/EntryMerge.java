@@ -0,0 +1,159 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+
+/*
+ * The outcome of syncing one entry. A merge worker decides on a private copy
+ * of the entry's checksums and collects the writes, the messages and the
+ * change tracking here, the syncing thread applies all of it at once to the
+ * checksum cache, the writers and the log.
+ */
+public class EntryMerge {
+  private final String id;
+  private final String partition;
+  private Map<String, byte[]> checksums;
+  private boolean checksumsChanged = false;
+  private AndroidWriteBatcher androidWrites;
+  private LDAPRequest ldapWrite;
+  private final List<SyncLog.Line> messages = new ArrayList<SyncLog.Line>(1);
+  private long confirmedPersonId = -1;
+  private boolean rejected = false;
+
+  public EntryMerge(String id, String partition, Map<String, byte[]> checksums) {
+    this.id = id;
+    this.partition = partition;
+    this.checksums = checksums;
+  }
+
+  public String getId() {
+    return this.id;
+  }
+
+  /*
+   * The partition the LDAP entry was found in, for a new Android contact the
+   * partition synced, null for other Android contacts without LDAP entry.
+   */
+  public String getPartition() {
+    return this.partition;
+  }
+
+  /*
+   * Checksums of the entry, see ChecksumCache.
+   */
+  public byte[] get(String field) {
+    return this.checksums == null ? null : this.checksums.get(field);
+  }
+
+  public boolean exists() {
+    return this.checksums != null && !this.checksums.isEmpty();
+  }
+
+  public void put(String field, byte[] checksum) {
+    if (this.checksums == null) this.checksums = new HashMap<String, byte[]>(4);
+    this.checksums.put(field, checksum);
+    this.checksumsChanged = true;
+  }
+
+  public void remove(String field) {
+    if (this.checksums == null || !this.checksums.containsKey(field)) return;
+    this.checksums.remove(field);
+    this.checksumsChanged = true;
+  }
+
+  public void remove() {
+    if (this.checksums == null) return;
+    this.checksums = null;
+    this.checksumsChanged = true;
+  }
+
+  public boolean isChecksumsChanged() {
+    return this.checksumsChanged;
+  }
+
+  public Map<String, byte[]> getChecksums() {
+    return this.checksums;
+  }
+
+  /*
+   * The batcher is created with the first Android write, most merges have
+   * none.
+   */
+  public AndroidWriteBatcher getAndroidWrites() {
+    if (this.androidWrites == null) this.androidWrites = new AndroidWriteBatcher();
+    return this.androidWrites;
+  }
+
+  public boolean hasAndroidWrites() {
+    return this.androidWrites != null && !this.androidWrites.isEmpty();
+  }
+
+  /*
+   * Whether executing the merge changes anything in Android, LDAP or the
+   * checksums.
+   */
+  public boolean hasWrites() {
+    return hasAndroidWrites() || this.ldapWrite != null || this.checksumsChanged || this.rejected;
+  }
+
+  /*
+   * An entry is written to LDAP with at most one request.
+   */
+  public void add(AddRequest request) {
+    this.ldapWrite = request;
+  }
+
+  public void modify(ModifyRequest request) {
+    this.ldapWrite = request;
+  }
+
+  public void delete(DeleteRequest request) {
+    this.ldapWrite = request;
+  }
+
+  public LDAPRequest getLDAPWrite() {
+    return this.ldapWrite;
+  }
+
+  public void log(String message) {
+    this.messages.add(new SyncLog.Line(SyncLog.INFO, message));
+  }
+
+  public void warn(String message) {
+    this.messages.add(new SyncLog.Line(SyncLog.WARN, message));
+  }
+
+  public List<SyncLog.Line> getMessages() {
+    return this.messages;
+  }
+
+  /*
+   * See AndroidChangeTracker.
+   */
+  public void confirm(long personId) {
+    this.confirmedPersonId = personId;
+  }
+
+  public void reject() {
+    this.rejected = true;
+  }
+
+  public long getConfirmedPersonId() {
+    return this.confirmedPersonId;
+  }
+
+  public boolean isRejected() {
+    return this.rejected;
+  }
+}
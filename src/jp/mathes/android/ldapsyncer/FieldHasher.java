@@ -0,0 +1,309 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Computes the digests stored in the checksum DB. Values are encoded as UTF-8
+ * straight into a per-thread digest, no joined or hex strings are built.
+ *
+ * A field digest is null if the field has no non-empty value. Otherwise each
+ * value is framed by a presence marker and its length, so different value
+ * lists never produce the same byte stream. The legacy MD5 variant instead
+ * reproduces the tab-joined MD5 of checksum DBs written before the digests
+ * were framed.
+ */
+public abstract class FieldHasher {
+  public static final String MD5_LEGACY = "md5-legacy";
+  public static final String MD5 = "md5";
+  public static final String FNV1A64 = "fnv1a64";
+
+  private static final int BUFFER_SIZE = 256;
+
+  /*
+   * The running digest of one thread.
+   */
+  protected static abstract class State {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    boolean first;
+
+    abstract void start();
+
+    abstract void update(byte b);
+
+    abstract void update(byte[] bytes, int offset, int length);
+
+    abstract byte[] finish();
+  }
+
+  private final ThreadLocal<State> states = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue() {
+      return newState();
+    }
+  };
+
+  public static FieldHasher forName(String name) {
+    if (MD5_LEGACY.equals(name)) return new LegacyMD5Hasher();
+    if (MD5.equals(name)) return new MD5Hasher();
+    if (FNV1A64.equals(name)) return new FNV1a64Hasher();
+    throw new IllegalArgumentException(String.format("Unknown hash algorithm '%s'", name));
+  }
+
+  public static boolean isSupported(String name) {
+    return MD5_LEGACY.equals(name) || MD5.equals(name) || FNV1A64.equals(name);
+  }
+
+  public byte[] hash(String value) {
+    if (value == null || value.length() == 0) return null;
+    State state = start();
+    value(state, value);
+    return state.finish();
+  }
+
+  public byte[] hash(String[] values) {
+    if (values == null || !hasContent(values)) return null;
+    State state = start();
+    for (String value : values) value(state, value);
+    return state.finish();
+  }
+
+  public byte[] hash(List<String> values) {
+    if (values == null) return null;
+    return hash(values.toArray(new String[values.size()]));
+  }
+
+  /*
+   * The digest of the subdirectory values of a contact, or the stored digest
+   * if it is accepted for the values in another order.
+   */
+  public byte[] hash(List<String> values, byte[] stored) {
+    return hash(values);
+  }
+
+  /*
+   * Digest over the ordered field digests of one record.
+   */
+  public byte[] record(byte[][] fieldDigests) {
+    State state = start();
+    state.update((byte) '#');
+    for (byte[] fieldDigest : fieldDigests) {
+      if (fieldDigest == null) {
+        state.update((byte) 0);
+      } else {
+        state.update((byte) 1);
+        state.update(fieldDigest, 0, fieldDigest.length);
+      }
+    }
+    return state.finish();
+  }
+
+  protected abstract State newState();
+
+  protected State start() {
+    State state = this.states.get();
+    state.start();
+    state.first = true;
+    return state;
+  }
+
+  /*
+   * Frames one value: 0 for null, otherwise 1, the length in chars and the
+   * UTF-8 bytes.
+   */
+  protected void value(State state, String value) {
+    if (value == null) {
+      state.update((byte) 0);
+      return;
+    }
+    state.update((byte) 1);
+    int length = value.length();
+    state.update((byte) (length >>> 24));
+    state.update((byte) (length >>> 16));
+    state.update((byte) (length >>> 8));
+    state.update((byte) length);
+    utf8(state, value);
+  }
+
+  protected static void utf8(State state, String value) {
+    byte[] buffer = state.buffer;
+    int position = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      if (position > BUFFER_SIZE - 4) {
+        state.update(buffer, 0, position);
+        position = 0;
+      }
+      int ch = value.charAt(i);
+      if (Character.isHighSurrogate((char) ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        ch = Character.toCodePoint((char) ch, value.charAt(++i));
+      } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+        ch = '?';
+      }
+      if (ch < 0x80) {
+        buffer[position++] = (byte) ch;
+      } else if (ch < 0x800) {
+        buffer[position++] = (byte) (0xC0 | (ch >> 6));
+        buffer[position++] = (byte) (0x80 | (ch & 0x3F));
+      } else if (ch < 0x10000) {
+        buffer[position++] = (byte) (0xE0 | (ch >> 12));
+        buffer[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+        buffer[position++] = (byte) (0x80 | (ch & 0x3F));
+      } else {
+        buffer[position++] = (byte) (0xF0 | (ch >> 18));
+        buffer[position++] = (byte) (0x80 | ((ch >> 12) & 0x3F));
+        buffer[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+        buffer[position++] = (byte) (0x80 | (ch & 0x3F));
+      }
+    }
+    state.update(buffer, 0, position);
+  }
+
+  private static boolean hasContent(String[] values) {
+    for (String value : values) {
+      if (value != null && value.length() > 0) return true;
+    }
+    return false;
+  }
+
+  static class MD5Hasher extends FieldHasher {
+    @Override
+    protected State newState() {
+      final MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      return new State() {
+        @Override
+        void start() {
+          digest.reset();
+        }
+
+        @Override
+        void update(byte b) {
+          digest.update(b);
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+          digest.update(bytes, offset, length);
+        }
+
+        @Override
+        byte[] finish() {
+          return digest.digest();
+        }
+      };
+    }
+  }
+
+  /*
+   * MD5 of the values joined by tabs, as written by earlier versions.
+   *
+   * Earlier versions read the subdirectory rows of each person in the order
+   * the provider returned them, the SubdirIndex reads them in the order of
+   * their ids. A stored digest of values in another order is accepted, for
+   * fields of up to MAX_PERMUTED_VALUES values.
+   */
+  static class LegacyMD5Hasher extends MD5Hasher {
+    static final int MAX_PERMUTED_VALUES = 5;
+
+    @Override
+    public byte[] hash(List<String> values, byte[] stored) {
+      byte[] digest = hash(values);
+      if (digest == null || stored == null || Arrays.equals(digest, stored) || values.size() > MAX_PERMUTED_VALUES) return digest;
+      return permute(values.toArray(new String[values.size()]), 0, stored) ? stored : digest;
+    }
+
+    /*
+     * True if an order of the values from the given position on has the
+     * stored digest.
+     */
+    private boolean permute(String[] values, int from, byte[] stored) {
+      if (from == values.length - 1) return Arrays.equals(hash(values), stored);
+      for (int i = from; i < values.length; i++) {
+        swap(values, from, i);
+        boolean found = permute(values, from + 1, stored);
+        swap(values, from, i);
+        if (found) return true;
+      }
+      return false;
+    }
+
+    private static void swap(String[] values, int i, int j) {
+      String value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+    @Override
+    public byte[] hash(String[] values) {
+      if (values == null || values.length == 0 || (values.length == 1 && (values[0] == null || values[0].length() == 0))) return null;
+      State state = start();
+      for (String value : values) value(state, value);
+      return state.finish();
+    }
+
+    @Override
+    public byte[] record(byte[][] fieldDigests) {
+      State state = start();
+      state.update((byte) '#');
+      for (byte[] fieldDigest : fieldDigests) value(state, ChecksumSchema.toHex(fieldDigest));
+      return state.finish();
+    }
+
+    @Override
+    protected void value(State state, String value) {
+      if (!state.first) state.update((byte) '\t');
+      state.first = false;
+      if (value != null) utf8(state, value);
+    }
+  }
+
+  static class FNV1a64Hasher extends FieldHasher {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    @Override
+    protected State newState() {
+      return new State() {
+        private long hash;
+
+        @Override
+        void start() {
+          this.hash = OFFSET_BASIS;
+        }
+
+        @Override
+        void update(byte b) {
+          this.hash = (this.hash ^ (b & 0xFF)) * PRIME;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+          long h = this.hash;
+          for (int i = offset; i < offset + length; i++) h = (h ^ (bytes[i] & 0xFF)) * PRIME;
+          this.hash = h;
+        }
+
+        @Override
+        byte[] finish() {
+          byte[] result = new byte[8];
+          long h = this.hash;
+          for (int i = 7; i >= 0; i--) {
+            result[i] = (byte) h;
+            h >>>= 8;
+          }
+          return result;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+
+/*
+ * Keeps a pool of bound LDAP connections for the lifetime of the service, so
+ * a sync does not connect and bind again if the previous one left usable
+ * connections behind. The pool is created again when the connection settings
+ * of the configuration change.
+ *
+ * New connections, also those replacing lost ones, are connected with the
+ * configured timeouts and bound by the pool. Connections are checked with a
+ * request for the root DSE when they are checked out and periodically while
+ * they are idle. A connection on which an operation failed is given back as
+ * defunct and closed.
+ */
+public class LDAPConnectionManager implements DirectoryStore {
+  private LDAPConnectionPool pool;
+  private String key;
+
+  synchronized public LDAPConnection getConnection(Configuration configuration) throws LDAPException {
+    String newKey = getKey(configuration);
+    if (this.pool != null && (this.pool.isClosed() || !newKey.equals(this.key))) close();
+    if (this.pool == null) {
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Creating LDAP connection pool for '%s:%d'", configuration.server, configuration.port));
+      LDAPConnectionOptions options = new LDAPConnectionOptions();
+      options.setConnectTimeoutMillis(configuration.connectTimeout);
+      options.setResponseTimeoutMillis(configuration.responseTimeout);
+      options.setUseKeepAlive(true);
+      LDAPConnectionPool newPool = new LDAPConnectionPool(new SingleServerSet(configuration.server, configuration.port, options), new SimpleBindRequest(configuration.binddn,
+          configuration.password), 1, configuration.poolSize);
+      newPool.setCreateIfNecessary(true);
+      newPool.setMaxWaitTimeMillis(configuration.connectTimeout);
+      newPool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck("", configuration.responseTimeout, false, true, false, true, true));
+      if (configuration.healthCheckInterval > 0) newPool.setHealthCheckIntervalMillis(configuration.healthCheckInterval);
+      this.pool = newPool;
+      this.key = newKey;
+    }
+    return this.pool.getConnection();
+  }
+
+  synchronized public void release(LDAPConnection conn, boolean defunct) {
+    if (this.pool == null || this.pool.isClosed()) {
+      conn.close();
+    } else if (defunct) {
+      this.pool.releaseDefunctConnection(conn);
+    } else {
+      this.pool.releaseConnection(conn);
+    }
+  }
+
+  synchronized public void close() {
+    if (this.pool == null) return;
+    if (LDAPSyncer.DEBUG) System.out.println("Closing LDAP connection pool");
+    this.pool.close();
+    this.pool = null;
+    this.key = null;
+  }
+
+  /*
+   * Failures that may be gone when the operation is tried again later on a
+   * new connection.
+   */
+  public static boolean isTransient(LDAPException e) {
+    ResultCode resultCode = e.getResultCode();
+    return !ResultCode.isConnectionUsable(resultCode) || resultCode == ResultCode.TIMEOUT || resultCode == ResultCode.BUSY || resultCode == ResultCode.UNAVAILABLE;
+  }
+
+  private static String getKey(Configuration configuration) {
+    return configuration.server + ":" + configuration.port + " " + configuration.binddn + " " + configuration.password + " " + configuration.connectTimeout + " "
+        + configuration.responseTimeout + " " + configuration.poolSize + " " + configuration.healthCheckInterval;
+  }
+}
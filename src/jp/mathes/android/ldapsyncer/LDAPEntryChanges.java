@@ -0,0 +1,76 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/*
+ * Collects the attribute changes of one LDAP entry so they are sent as a
+ * single ModifyRequest. Each attribute is compared with the values the entry
+ * had when it was read: single values are replaced, of multi-valued
+ * attributes only the values that were removed or added are sent.
+ */
+public class LDAPEntryChanges {
+  private final SearchResultEntry entry;
+  private final List<Modification> deletes = new ArrayList<Modification>();
+  private final List<Modification> adds = new ArrayList<Modification>();
+
+  public LDAPEntryChanges(SearchResultEntry entry) {
+    this.entry = entry;
+  }
+
+  /*
+   * Sets the new values of an attribute, null and empty values are ignored.
+   */
+  public void setValues(String attribute, List<String> values) {
+    Set<String> newValues = new LinkedHashSet<String>();
+    for (String value : values) {
+      if (value != null && value.length() > 0) newValues.add(value);
+    }
+    String[] oldValueArray = this.entry.getAttributeValues(attribute);
+    Set<String> oldValues = new LinkedHashSet<String>();
+    if (oldValueArray != null) oldValues.addAll(Arrays.asList(oldValueArray));
+    if (newValues.equals(oldValues)) return;
+    if (newValues.isEmpty()) {
+      this.deletes.add(new Modification(ModificationType.DELETE, attribute));
+    } else if (oldValues.isEmpty()) {
+      this.adds.add(new Modification(ModificationType.ADD, attribute, toArray(newValues)));
+    } else if (oldValues.size() == 1 && newValues.size() == 1) {
+      this.adds.add(new Modification(ModificationType.REPLACE, attribute, toArray(newValues)));
+    } else {
+      Set<String> removed = new LinkedHashSet<String>(oldValues);
+      removed.removeAll(newValues);
+      Set<String> added = new LinkedHashSet<String>(newValues);
+      added.removeAll(oldValues);
+      // deletes go first so a value that only changed its case can be added again
+      if (!removed.isEmpty()) this.deletes.add(new Modification(ModificationType.DELETE, attribute, toArray(removed)));
+      if (!added.isEmpty()) this.adds.add(new Modification(ModificationType.ADD, attribute, toArray(added)));
+    }
+  }
+
+  public boolean isEmpty() {
+    return this.deletes.isEmpty() && this.adds.isEmpty();
+  }
+
+  public ModifyRequest toModifyRequest() {
+    List<Modification> modifications = new ArrayList<Modification>(this.deletes.size() + this.adds.size());
+    modifications.addAll(this.deletes);
+    modifications.addAll(this.adds);
+    return new ModifyRequest(this.entry.getDN(), modifications);
+  }
+
+  private static String[] toArray(Set<String> values) {
+    return values.toArray(new String[values.size()]);
+  }
+}
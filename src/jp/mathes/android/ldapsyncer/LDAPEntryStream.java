@@ -0,0 +1,234 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import jp.mathes.android.ldapsyncer.exceptions.StopException;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/*
+ * Runs LDAP searches in threads of their own and hands the entries to the
+ * syncing thread as they arrive, so the merge starts with the first entry
+ * and only the entries not yet merged are held in memory. Each search (one
+ * per partition) runs on its own connection, all of them concurrently, and
+ * next() returns their entries as they arrive together with the partition
+ * they were found in.
+ *
+ * With a page size the searches use the simple paged results control. The
+ * entries are queued by the connections' reader threads, which must never
+ * block, so the queue is unbounded; the next page is only requested once the
+ * syncing thread has taken all but less than a page of the queued entries.
+ * A page size of 0 runs a single search per base without the control.
+ */
+public class LDAPEntryStream {
+  private static final Object END = new Object();
+
+  private static class Item {
+    final String partition;
+    final SearchResultEntry entry;
+
+    Item(String partition, SearchResultEntry entry) {
+      this.partition = partition;
+      this.entry = entry;
+    }
+  }
+
+  private class Search implements SearchResultListener, Runnable {
+    private static final long serialVersionUID = 1L;
+    private final String partition;
+    private final LDAPConnection conn;
+    private final List<String> bases;
+    private final String filter;
+
+    Search(String partition, LDAPConnection conn, List<String> bases, String filter) {
+      this.partition = partition;
+      this.conn = conn;
+      this.bases = bases;
+      this.filter = filter;
+    }
+
+    public void run() {
+      try {
+        for (String base : this.bases) {
+          if (closed) return;
+          search(base);
+        }
+      } catch (LDAPException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new LDAPException(ResultCode.LOCAL_ERROR, String.valueOf(e.getMessage()), e);
+      } catch (InterruptedException e) {
+        // closed while waiting for the queue to drain
+      } finally {
+        synchronized (searches) {
+          if (--running == 0) queue.add(END);
+        }
+      }
+    }
+
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+      if (returnedDNs != null && !returnedDNs.add(searchEntry.getDN().toLowerCase())) return;
+      queue.add(new Item(this.partition, searchEntry));
+      metrics.count(SyncMetrics.LDAP_ENTRIES);
+      metrics.count(SyncMetrics.LDAP_BYTES_RECEIVED, valueBytes(searchEntry));
+    }
+
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Ignoring search reference '%s'", searchReference));
+    }
+
+    private void search(String base) throws LDAPException, InterruptedException {
+      ASN1OctetString cookie = null;
+      do {
+        awaitDrain();
+        if (closed) return;
+        Control[] controls = pageSize > 0 ? new Control[] { new SimplePagedResultsControl(pageSize, cookie) } : new Control[0];
+        SearchRequest request = new SearchRequest(this, controls, base, scope, DereferencePolicy.NEVER, 0, 0, false, this.filter, attributes);
+        long start = SyncMetrics.start();
+        SearchResult result = this.conn.search(request);
+        metrics.count(SyncMetrics.LDAP_SEARCHES);
+        metrics.latency(SyncMetrics.LATENCY_SEARCH, start);
+        if (LDAPSyncer.DEBUG) System.out.println(String.format("Received page of %d entries for partition '%s'", result.getEntryCount(), this.partition));
+        cookie = pageSize > 0 ? nextCookie(result) : null;
+      } while (cookie != null);
+    }
+  }
+
+  private final SearchScope scope;
+  private final String[] attributes;
+  private final int pageSize;
+  private final SyncMetrics metrics;
+  private final List<Search> searches = new ArrayList<Search>();
+  // DNs returned so far, only kept when several bases may overlap
+  private Set<String> returnedDNs;
+  private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+  private volatile LDAPException error = null;
+  private volatile boolean closed = false;
+  private int running;
+  private String partition;
+
+  public LDAPEntryStream(SearchScope scope, String[] attributes, int pageSize, SyncMetrics metrics) {
+    this.scope = scope;
+    this.attributes = attributes;
+    this.pageSize = pageSize;
+    this.metrics = metrics;
+  }
+
+  /*
+   * Adds the search of a partition, to be called before start().
+   */
+  public void add(String partition, LDAPConnection conn, List<String> bases, String filter) {
+    this.searches.add(new Search(partition, conn, bases, filter));
+  }
+
+  public void start() {
+    int bases = 0;
+    for (Search search : this.searches) bases += search.bases.size();
+    if (bases > 1) this.returnedDNs = Collections.synchronizedSet(new HashSet<String>());
+    this.running = this.searches.size();
+    if (this.running == 0) this.queue.add(END);
+    for (Search search : this.searches) {
+      Thread producer = new Thread(search, "LDAPEntryStream");
+      producer.setDaemon(true);
+      producer.start();
+    }
+  }
+
+  /*
+   * The next entry, null once all entries were returned. An error of a
+   * search is thrown after the entries received before it.
+   */
+  public SearchResultEntry next() throws LDAPException, StopException {
+    Object next;
+    long start = SyncMetrics.start();
+    try {
+      next = this.queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StopException();
+    } finally {
+      this.metrics.time(SyncMetrics.PHASE_LDAP_SEARCH, start);
+    }
+    if (next == END) {
+      this.queue.add(END);
+      if (this.error != null) throw this.error;
+      return null;
+    }
+    if (this.queue.size() < this.pageSize) {
+      synchronized (this.queue) {
+        this.queue.notifyAll();
+      }
+    }
+    Item item = (Item) next;
+    this.partition = item.partition;
+    return item.entry;
+  }
+
+  /*
+   * The partition the entry last returned by next() was found in.
+   */
+  public String getPartition() {
+    return this.partition;
+  }
+
+  /*
+   * Stops requesting further pages, a page already requested is still read by
+   * the connection.
+   */
+  public void close() {
+    this.closed = true;
+    synchronized (this.queue) {
+      this.queue.notifyAll();
+    }
+  }
+
+  private void awaitDrain() throws InterruptedException {
+    if (this.pageSize <= 0) return;
+    synchronized (this.queue) {
+      while (!this.closed && this.queue.size() >= this.pageSize) this.queue.wait();
+    }
+  }
+
+  /*
+   * The size of the DN and the attribute values of the entry, the LDAP SDK
+   * does not count the bytes read from the connection.
+   */
+  private static long valueBytes(SearchResultEntry entry) {
+    long bytes = entry.getDN().length();
+    for (Attribute attribute : entry.getAttributes()) {
+      for (ASN1OctetString value : attribute.getRawValues()) bytes += value.getValueLength();
+    }
+    return bytes;
+  }
+
+  private static ASN1OctetString nextCookie(SearchResult result) throws LDAPException {
+    Control control = result.getResponseControl(SimplePagedResultsControl.PAGED_RESULTS_OID);
+    if (control == null) return null;
+    SimplePagedResultsControl paged = control instanceof SimplePagedResultsControl ? (SimplePagedResultsControl) control : new SimplePagedResultsControl(control.getOID(),
+        control.isCritical(), control.getValue());
+    ASN1OctetString cookie = paged.getCookie();
+    return cookie == null || cookie.getValueLength() == 0 ? null : cookie;
+  }
+}
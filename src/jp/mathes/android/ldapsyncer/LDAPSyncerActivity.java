@@ -5,8 +5,7 @@
 package jp.mathes.android.ldapsyncer;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
 
 import jp.mathes.android.ldapsyncer.LDAPSyncer.LDAPSyncerBinder;
 import android.app.Activity;
@@ -42,7 +41,23 @@ public class LDAPSyncerActivity extends Activity {
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
       syncerBinder = (LDAPSyncerBinder) service;
-      syncerBinder.getService().setActivity(LDAPSyncerActivity.this);
+      syncerBinder.getService().getLog().setListener(logListener);
+    }
+  };
+
+  private SyncLog.Listener logListener = new SyncLog.Listener() {
+    @Override
+    public void onLog(List<SyncLog.Line> lines, boolean reset) {
+      StringBuilder text = new StringBuilder();
+      for (SyncLog.Line line : lines) text.append("* ").append(line.getMessage()).append("\n");
+      TextView log = (TextView) LDAPSyncerActivity.this.findViewById(R.id.textView_Log);
+      if (reset) {
+        log.setText(text);
+      } else {
+        log.append(text);
+      }
+      ScrollView sv = (ScrollView) LDAPSyncerActivity.this.findViewById(R.id.ScrollView_Log);
+      sv.fullScroll(ScrollView.FOCUS_DOWN);
     }
   };
 
@@ -74,9 +89,23 @@ public class LDAPSyncerActivity extends Activity {
 
   public class StartSyncListener implements OnClickListener {
     private String dataDirectory;
+    private boolean fullSync;
+    private String partition;
+    private boolean preview;
+
+    public StartSyncListener(String dataDirectory, boolean fullSync) {
+      this(dataDirectory, fullSync, null);
+    }
 
-    public StartSyncListener(String dataDirectory) {
+    public StartSyncListener(String dataDirectory, boolean fullSync, String partition) {
+      this(dataDirectory, fullSync, partition, false);
+    }
+
+    public StartSyncListener(String dataDirectory, boolean fullSync, String partition, boolean preview) {
       this.dataDirectory = dataDirectory;
+      this.fullSync = fullSync;
+      this.partition = partition;
+      this.preview = preview;
     }
 
     @Override
@@ -91,7 +120,11 @@ public class LDAPSyncerActivity extends Activity {
               ((Button) findViewById(R.id.button_stopSync)).setVisibility(View.VISIBLE);
             }
           });
-          syncerBinder.getService().sync(dataDirectory);
+          if (preview) {
+            syncerBinder.getService().preview(dataDirectory, fullSync);
+          } else {
+            syncerBinder.getService().sync(dataDirectory, fullSync, partition);
+          }
           LDAPSyncerActivity.this.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -104,6 +137,21 @@ public class LDAPSyncerActivity extends Activity {
     }
   }
 
+  public class SyncPartitionListener implements OnClickListener {
+    private String dataDirectory;
+    private String[] partitions;
+
+    public SyncPartitionListener(String dataDirectory, String[] partitions) {
+      this.dataDirectory = dataDirectory;
+      this.partitions = partitions;
+    }
+
+    @Override
+    public void onClick(DialogInterface dialog, int which) {
+      new StartSyncListener(dataDirectory, true, partitions[which]).onClick(dialog, which);
+    }
+  }
+
   public class StopSyncListener implements OnClickListener {
 
     public StopSyncListener() {
@@ -127,6 +175,7 @@ public class LDAPSyncerActivity extends Activity {
 
   @Override
   protected void onDestroy() {
+    if (this.syncerBinder != null) this.syncerBinder.getService().getLog().setListener(null);
     super.onDestroy();
   };
 
@@ -142,7 +191,7 @@ public class LDAPSyncerActivity extends Activity {
         if (dataDirectory != null && dataDirectory.length() > 0) {
           builder.setTitle("Confirm");
           builder.setMessage(String.format("Start sync with data directory '%s' ?", dataDirectory));
-          builder.setPositiveButton("Ok", new StartSyncListener(dataDirectory));
+          builder.setPositiveButton("Ok", new StartSyncListener(dataDirectory, false));
           builder.setNegativeButton("Cancel", null);
           AlertDialog ad = builder.create();
           ad.show();
@@ -208,6 +257,59 @@ public class LDAPSyncerActivity extends Activity {
         AlertDialog ad = builder.create();
         ad.show();
       }
+    } else if (item.getItemId() == R.id.menu_fullSync) {
+      String dataDirectory = PreferenceManager.getDefaultSharedPreferences(LDAPSyncerActivity.this).getString("data_directory", null);
+      AlertDialog.Builder builder = new AlertDialog.Builder(LDAPSyncerActivity.this);
+      if (dataDirectory != null && dataDirectory.length() > 0) {
+        builder.setTitle("Confirm");
+        builder.setMessage(String.format("Start full sync (reading all LDAP entries) with data directory '%s' ?", dataDirectory));
+        builder.setPositiveButton("Ok", new StartSyncListener(dataDirectory, true));
+        builder.setNegativeButton("Cancel", null);
+        AlertDialog ad = builder.create();
+        ad.show();
+      } else {
+        builder.setTitle("Error");
+        builder.setMessage("Data directory not set, go to the preferences");
+        builder.setNeutralButton("Ok", null);
+        AlertDialog ad = builder.create();
+        ad.show();
+      }
+    } else if (item.getItemId() == R.id.menu_syncPartition) {
+      String dataDirectory = PreferenceManager.getDefaultSharedPreferences(LDAPSyncerActivity.this).getString("data_directory", null);
+      String[] partitions = dataDirectory != null && dataDirectory.length() > 0 ? syncerBinder.getService().getPartitionNames(dataDirectory) : null;
+      AlertDialog.Builder builder = new AlertDialog.Builder(LDAPSyncerActivity.this);
+      // a configuration without partitions lists the default one, its sync is a full sync
+      if (partitions != null && partitions.length >= 1) {
+        String[] labels = new String[partitions.length];
+        for (int i = 0; i < partitions.length; i++) labels[i] = partitions[i].length() == 0 ? "(default)" : partitions[i];
+        builder.setTitle("Full sync of partition");
+        builder.setItems(labels, new SyncPartitionListener(dataDirectory, partitions));
+        AlertDialog ad = builder.create();
+        ad.show();
+      } else {
+        builder.setTitle("Error");
+        builder.setMessage("Configuration not readable, check configuration.xml in the data directory");
+        builder.setNeutralButton("Ok", null);
+        AlertDialog ad = builder.create();
+        ad.show();
+      }
+    } else if (item.getItemId() == R.id.menu_preview) {
+      String dataDirectory = PreferenceManager.getDefaultSharedPreferences(LDAPSyncerActivity.this).getString("data_directory", null);
+      AlertDialog.Builder builder = new AlertDialog.Builder(LDAPSyncerActivity.this);
+      if (dataDirectory != null && dataDirectory.length() > 0) {
+        builder.setTitle("Confirm");
+        builder.setMessage(String.format("Preview sync with data directory '%s' ? Nothing is written, the planned changes are listed in '%s'.", dataDirectory, SyncPlan.PLAN_FILE));
+        builder.setPositiveButton("Ok", new StartSyncListener(dataDirectory, false, null, true));
+        builder.setNegativeButton("Cancel", null);
+        AlertDialog ad = builder.create();
+        ad.show();
+      } else {
+        builder.setTitle("Error");
+        builder.setMessage("Data directory not set, go to the preferences");
+        builder.setNeutralButton("Ok", null);
+        AlertDialog ad = builder.create();
+        ad.show();
+      }
     } else if (item.getItemId() == R.id.menu_cleanChecksum) {
       String dataDirectory = PreferenceManager.getDefaultSharedPreferences(LDAPSyncerActivity.this).getString("data_directory", null);
       AlertDialog.Builder builder = new AlertDialog.Builder(LDAPSyncerActivity.this);
@@ -228,22 +330,4 @@ public class LDAPSyncerActivity extends Activity {
     }
     return true;
   }
-
-  public void logString(final String entry) {
-    this.runOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-        TextView log = (TextView) LDAPSyncerActivity.this.findViewById(R.id.textView_Log);
-        log.append("* ");
-        log.append(entry);
-        log.append("\n");
-        ScrollView sv = (ScrollView) LDAPSyncerActivity.this.findViewById(R.id.ScrollView_Log);
-        sv.fullScroll(ScrollView.FOCUS_DOWN);
-      }
-    });
-  }
-
-  public InputStream getInputStreamFromAssets(String filename) throws IOException {
-    return getAssets().open(filename);
-  }
 }
\ No newline at end of file
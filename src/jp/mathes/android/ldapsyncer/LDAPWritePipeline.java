@@ -0,0 +1,173 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jp.mathes.android.ldapsyncer.exceptions.StopException;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/*
+ * Sends add, modify and delete requests asynchronously with at most a given
+ * number of requests waiting for their response. Results arrive on the
+ * connection's reader thread and are only queued there, failures are handed
+ * to the FailureListener on the syncing thread by poll() and complete(), so
+ * the checksum cache is never touched concurrently.
+ *
+ * An operation is confirmed once the server answered with success. Callers
+ * must call complete() before writing checksums, afterwards every entry
+ * written through the pipeline is either confirmed or was reported failed.
+ */
+public class LDAPWritePipeline {
+
+  public interface FailureListener {
+    void entryFailed(String name, String message);
+  }
+
+  private class Operation implements AsyncResultListener {
+    final String entry;
+    final long start = SyncMetrics.start();
+
+    Operation(String entry) {
+      this.entry = entry;
+    }
+
+    public void ldapResultReceived(AsyncRequestID requestID, LDAPResult result) {
+      // a response arriving after complete() gave up on the operation is ignored
+      if (outstanding.remove(this) == null) return;
+      metrics.latency(SyncMetrics.LATENCY_WRITE, this.start);
+      if (result.getResultCode() != ResultCode.SUCCESS) {
+        failures.add(new String[] { this.entry, result.getResultCode() + (result.getDiagnosticMessage() == null ? "" : ": " + result.getDiagnosticMessage()) });
+      }
+      window.release();
+    }
+  }
+
+  private final LDAPConnection conn;
+  private final int windowSize;
+  private final Semaphore window;
+  private final SyncMetrics metrics;
+  private final FailureListener listener;
+  private final Map<Operation, String> outstanding = new ConcurrentHashMap<Operation, String>();
+  private final Queue<String[]> failures = new ConcurrentLinkedQueue<String[]>();
+
+  public LDAPWritePipeline(LDAPConnection conn, int windowSize, SyncMetrics metrics, FailureListener listener) {
+    this.conn = conn;
+    this.windowSize = windowSize;
+    this.window = new Semaphore(windowSize);
+    this.metrics = metrics;
+    this.listener = listener;
+  }
+
+  public void add(String entry, AddRequest request) throws LDAPException, StopException {
+    Operation operation = submit(entry);
+    this.metrics.count(SyncMetrics.LDAP_ADDS);
+    try {
+      this.conn.asyncAdd(request, operation);
+    } catch (LDAPException e) {
+      abort(operation, e.getMessage());
+      throw e;
+    }
+  }
+
+  public void modify(String entry, ModifyRequest request) throws LDAPException, StopException {
+    Operation operation = submit(entry);
+    this.metrics.count(SyncMetrics.LDAP_MODIFIES);
+    try {
+      this.conn.asyncModify(request, operation);
+    } catch (LDAPException e) {
+      abort(operation, e.getMessage());
+      throw e;
+    }
+  }
+
+  public void delete(String entry, DeleteRequest request) throws LDAPException, StopException {
+    Operation operation = submit(entry);
+    this.metrics.count(SyncMetrics.LDAP_DELETES);
+    try {
+      this.conn.asyncDelete(request, operation);
+    } catch (LDAPException e) {
+      abort(operation, e.getMessage());
+      throw e;
+    }
+  }
+
+  /*
+   * Reports the failures received so far.
+   */
+  public void poll() {
+    String[] failure;
+    while ((failure = this.failures.poll()) != null) this.listener.entryFailed(failure[0], failure[1]);
+  }
+
+  /*
+   * Waits for the responses of all outstanding operations, operations without
+   * a response within the connection's response timeout count as failed.
+   */
+  public void complete() {
+    long timeout = this.conn.getConnectionOptions().getResponseTimeoutMillis();
+    boolean complete = false;
+    long start = SyncMetrics.start();
+    try {
+      complete = timeout > 0 ? this.window.tryAcquire(this.windowSize, timeout, TimeUnit.MILLISECONDS) : acquireAll();
+      if (complete) this.window.release(this.windowSize);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.metrics.time(SyncMetrics.PHASE_WRITES, start);
+    }
+    if (!complete) {
+      List<Operation> lost = new ArrayList<Operation>(this.outstanding.keySet());
+      for (Operation operation : lost) {
+        if (this.outstanding.remove(operation) == null) continue;
+        this.failures.add(new String[] { operation.entry, "no response from server" });
+        this.window.release();
+      }
+    }
+    poll();
+  }
+
+  private boolean acquireAll() throws InterruptedException {
+    this.window.acquire(this.windowSize);
+    return true;
+  }
+
+  private Operation submit(String entry) throws StopException {
+    long start = SyncMetrics.start();
+    try {
+      this.window.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StopException();
+    } finally {
+      this.metrics.time(SyncMetrics.PHASE_WRITES, start);
+    }
+    Operation operation = new Operation(entry);
+    this.outstanding.put(operation, entry);
+    return operation;
+  }
+
+  private void abort(Operation operation, String message) {
+    if (this.outstanding.remove(operation) == null) return;
+    this.failures.add(new String[] { operation.entry, message });
+    this.window.release();
+  }
+}
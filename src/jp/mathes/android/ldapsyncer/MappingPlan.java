@@ -0,0 +1,112 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.mathes.android.ldapsyncer.Configuration.AndroidField;
+import android.database.Cursor;
+
+/*
+ * The mapping compiled for the merge: one descriptor per mapped field in the
+ * field order, each with the slots it occupies in a contact snapshot and in
+ * the subdirectory index. Names are resolved to slots once per configuration
+ * and column names to indices once per cursor, so merging an entry does no
+ * lookups by name.
+ */
+public class MappingPlan {
+
+  static public class Field {
+    // position in the field order and in the hash arrays
+    final int index;
+    final String ldapName;
+    final AndroidField androidField;
+    // position in the direct values of a snapshot, -1 for a subdirectory field
+    int directSlot = -1;
+    // position among the subdirectory fields, -1 for a direct field
+    int subdirSlot = -1;
+    int directory = -1;
+    // position in the value columns of the directory
+    int directoryColumn = -1;
+    String bucketKey;
+
+    Field(int index, String ldapName, AndroidField androidField) {
+      this.index = index;
+      this.ldapName = ldapName;
+      this.androidField = androidField;
+    }
+
+    public boolean isDirect() {
+      return this.directSlot >= 0;
+    }
+  }
+
+  final Field[] fields;
+  final int subdirFieldCount;
+  final String[] directColumns;
+  final String[] directories;
+  final String[][] directoryColumns;
+  private final Map<String, Field> byName = new HashMap<String, Field>();
+
+  MappingPlan(List<String> fieldOrder, Map<String, AndroidField> mapping) {
+    List<String> directColumns = new ArrayList<String>();
+    List<String> directories = new ArrayList<String>();
+    List<List<String>> directoryColumns = new ArrayList<List<String>>();
+    int subdirFieldCount = 0;
+    this.fields = new Field[fieldOrder.size()];
+    for (int i = 0; i < this.fields.length; i++) {
+      String ldapName = fieldOrder.get(i);
+      Field field = new Field(i, ldapName, mapping.get(ldapName));
+      if (!field.androidField.inSubdir) {
+        field.directSlot = slot(directColumns, field.androidField.name);
+      } else {
+        field.subdirSlot = subdirFieldCount++;
+        field.directory = directories.indexOf(field.androidField.directory);
+        if (field.directory < 0) {
+          field.directory = directories.size();
+          directories.add(field.androidField.directory);
+          directoryColumns.add(new ArrayList<String>());
+        }
+        field.directoryColumn = slot(directoryColumns.get(field.directory), field.androidField.name);
+        field.bucketKey = SubdirIndex.bucketKey(field.androidField);
+      }
+      this.fields[i] = field;
+      this.byName.put(ldapName, field);
+    }
+    this.subdirFieldCount = subdirFieldCount;
+    this.directColumns = directColumns.toArray(new String[directColumns.size()]);
+    this.directories = directories.toArray(new String[directories.size()]);
+    this.directoryColumns = new String[directories.size()][];
+    for (int i = 0; i < this.directoryColumns.length; i++) this.directoryColumns[i] = directoryColumns.get(i).toArray(new String[directoryColumns.get(i).size()]);
+  }
+
+  /*
+   * The field mapped to an LDAP attribute, null if it is not mapped.
+   */
+  public Field get(String ldapName) {
+    return this.byName.get(ldapName);
+  }
+
+  /*
+   * Indices of the direct columns in the cursor, by direct slot.
+   */
+  public int[] resolveDirectColumns(Cursor cursor) {
+    int[] columns = new int[this.directColumns.length];
+    for (int i = 0; i < columns.length; i++) columns[i] = cursor.getColumnIndex(this.directColumns[i]);
+    return columns;
+  }
+
+  private static int slot(List<String> names, String name) {
+    int slot = names.indexOf(name);
+    if (slot < 0) {
+      slot = names.size();
+      names.add(name);
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import jp.mathes.android.ldapsyncer.exceptions.StopException;
+
+import com.unboundid.ldap.sdk.LDAPException;
+
+/*
+ * Runs the hashing and merge decisions of the entries on a pool of worker
+ * threads while the syncing thread reads the next entries and applies the
+ * finished merges, so the writers, the checksum cache and the log are still
+ * only used by the syncing thread.
+ *
+ * At most capacity merges are running or waiting to be applied, submit()
+ * applies finished merges until there is room again. A merge starts from the
+ * checksums as applied so far, an entry whose previous merge is not applied
+ * yet waits for it. Without workers each merge runs and is applied right
+ * away on the syncing thread.
+ */
+public class MergePipeline {
+
+  public interface Task {
+    void run(EntryMerge merge) throws LDAPException;
+  }
+
+  public interface Applier {
+    void apply(EntryMerge merge) throws LDAPException, StopException;
+  }
+
+  private static class Result {
+    final EntryMerge merge;
+    final Throwable error;
+
+    Result(EntryMerge merge, Throwable error) {
+      this.merge = merge;
+      this.error = error;
+    }
+  }
+
+  private final ChecksumCache checksums;
+  private final int capacity;
+  private final Applier applier;
+  private final SyncMetrics metrics;
+  private final ExecutorService workers;
+  private final LinkedBlockingQueue<Result> finished = new LinkedBlockingQueue<Result>();
+  private final Set<String> running = new HashSet<String>();
+
+  public MergePipeline(ChecksumCache checksums, int workers, int capacity, SyncMetrics metrics, Applier applier) {
+    this.checksums = checksums;
+    this.capacity = capacity;
+    this.applier = applier;
+    this.metrics = metrics;
+    this.workers = workers > 0 ? Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "MergeWorker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }) : null;
+  }
+
+  public void submit(String id, String partition, final Task task) throws LDAPException, StopException {
+    if (this.workers == null) {
+      EntryMerge merge = new EntryMerge(id, partition, this.checksums.copy(id));
+      run(task, merge);
+      this.applier.apply(merge);
+      return;
+    }
+    while (this.running.size() >= this.capacity || this.running.contains(id)) applyNext(take());
+    final EntryMerge merge = new EntryMerge(id, partition, this.checksums.copy(id));
+    this.running.add(id);
+    this.workers.execute(new Runnable() {
+      public void run() {
+        Throwable error = null;
+        try {
+          MergePipeline.this.run(task, merge);
+        } catch (Throwable e) {
+          error = e;
+        }
+        finished.add(new Result(merge, error));
+      }
+    });
+    Result result;
+    while ((result = this.finished.poll()) != null) applyNext(result);
+  }
+
+  /*
+   * Applies all remaining merges.
+   */
+  public void finish() throws LDAPException, StopException {
+    while (!this.running.isEmpty()) applyNext(take());
+  }
+
+  /*
+   * Stops the workers, merges not applied yet are dropped.
+   */
+  public void close() {
+    if (this.workers != null) this.workers.shutdownNow();
+  }
+
+  private void run(Task task, EntryMerge merge) throws LDAPException {
+    long start = SyncMetrics.start();
+    try {
+      task.run(merge);
+    } finally {
+      this.metrics.time(SyncMetrics.PHASE_MERGE, start);
+    }
+  }
+
+  private Result take() throws StopException {
+    try {
+      return this.finished.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StopException();
+    }
+  }
+
+  private void applyNext(Result result) throws LDAPException, StopException {
+    this.running.remove(result.merge.getId());
+    if (result.error instanceof LDAPException) throw (LDAPException) result.error;
+    if (result.error instanceof RuntimeException) throw (RuntimeException) result.error;
+    if (result.error instanceof Error) throw (Error) result.error;
+    this.applier.apply(result.merge);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.Arrays;
+
+/*
+ * The decision for one field of an entry that exists on both sides, made from
+ * the hash stored at the last sync and the current hashes on LDAP and
+ * Android, following the change, alwaysWins and allChangesFrom settings.
+ */
+public class MergeRules {
+  // nothing to do
+  public static final int UNCHANGED = 0;
+  // both sides already agree, only the hash is stored
+  public static final int STORE = 1;
+  public static final int TO_ANDROID = 2;
+  public static final int TO_LDAP = 3;
+  public static final int CONFLICT = 4;
+
+  final boolean changeOnAndroid, changeOnLDAP;
+  final boolean AndroidAlwaysWins, LDAPAlwaysWins;
+  final boolean allChangesFromAndroid, allChangesFromLDAP;
+
+  public MergeRules(boolean changeOnAndroid, boolean changeOnLDAP, boolean AndroidAlwaysWins, boolean LDAPAlwaysWins, boolean allChangesFromAndroid,
+      boolean allChangesFromLDAP) {
+    this.changeOnAndroid = changeOnAndroid;
+    this.changeOnLDAP = changeOnLDAP;
+    this.AndroidAlwaysWins = AndroidAlwaysWins;
+    this.LDAPAlwaysWins = LDAPAlwaysWins;
+    this.allChangesFromAndroid = allChangesFromAndroid;
+    this.allChangesFromLDAP = allChangesFromLDAP;
+  }
+
+  /*
+   * The hashes are null for a field without value, the stored hash is null
+   * if the field was not synced before.
+   */
+  public int decide(byte[] stored, byte[] ldapHash, byte[] androidHash) {
+    if (stored == null) {
+      if (ldapHash == null && androidHash == null) return UNCHANGED;
+      if (ldapHash != null && Arrays.equals(androidHash, ldapHash)) return STORE;
+      if (this.changeOnLDAP && ((androidHash != null && ldapHash == null && !this.allChangesFromLDAP) || this.allChangesFromAndroid)) return TO_LDAP;
+      if (this.changeOnAndroid && ((androidHash == null && ldapHash != null && !this.allChangesFromAndroid) || this.allChangesFromLDAP)) return TO_ANDROID;
+      if (this.changeOnLDAP && this.AndroidAlwaysWins && !this.allChangesFromLDAP) return TO_LDAP;
+      if (this.changeOnAndroid && this.LDAPAlwaysWins && !this.allChangesFromAndroid) return TO_ANDROID;
+      return CONFLICT;
+    }
+    boolean androidUnchanged = Arrays.equals(stored, androidHash);
+    boolean ldapUnchanged = Arrays.equals(stored, ldapHash);
+    if (androidUnchanged && ldapUnchanged) return UNCHANGED;
+    if (this.changeOnAndroid && ((androidUnchanged && !this.allChangesFromAndroid) || this.allChangesFromLDAP)) return TO_ANDROID;
+    if (this.changeOnLDAP && ((ldapUnchanged && !this.allChangesFromLDAP) || this.allChangesFromAndroid)) return TO_LDAP;
+    if (this.changeOnAndroid && this.LDAPAlwaysWins && !this.allChangesFromAndroid) return TO_ANDROID;
+    if (this.changeOnLDAP && this.AndroidAlwaysWins && !this.allChangesFromLDAP) return TO_LDAP;
+    return CONFLICT;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/*
+ * The checksum DB, see ChecksumSchema. Rows are written through precompiled
+ * statements and grouped into transactions, a transaction is only committed
+ * at an entry boundary.
+ */
+public class SQLiteChecksumStore implements ChecksumStore {
+  public static final String PROFILE_DEFAULT = "default";
+  public static final String PROFILE_RELAXED = "relaxed";
+  public static final String PROFILE_WAL = "wal";
+
+  private final SQLiteDatabase checksumDb;
+  private final int batchSize;
+  private final SyncMetrics metrics;
+  private final Map<String, Long> entryIds = new HashMap<String, Long>();
+  private final Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+  private final SQLiteStatement insertStatement;
+  private final SQLiteStatement deleteFieldStatement;
+  private final SQLiteStatement deleteEntryStatement;
+  private final SQLiteStatement deleteNameStatement;
+  private final SQLiteStatement insertNameStatement;
+  private final SQLiteStatement insertFieldStatement;
+  private int pending = 0;
+
+  public SQLiteChecksumStore(SQLiteDatabase checksumDb, int batchSize, SyncMetrics metrics) {
+    this.checksumDb = checksumDb;
+    this.batchSize = batchSize;
+    this.metrics = metrics;
+    loadIds();
+    this.insertStatement = checksumDb.compileStatement(ChecksumSchema.INSERT_CHECKSUM);
+    this.deleteFieldStatement = checksumDb.compileStatement(ChecksumSchema.DELETE_CHECKSUM);
+    this.deleteEntryStatement = checksumDb.compileStatement(ChecksumSchema.DELETE_ENTRY_CHECKSUMS);
+    this.deleteNameStatement = checksumDb.compileStatement(ChecksumSchema.DELETE_ENTRY);
+    this.insertNameStatement = checksumDb.compileStatement(ChecksumSchema.INSERT_ENTRY);
+    this.insertFieldStatement = checksumDb.compileStatement(ChecksumSchema.INSERT_FIELD);
+  }
+
+  /*
+   * Applies the storage profile to the checksum DB and returns the journal
+   * mode in effect. Platforms whose SQLite does not know WAL keep their
+   * journal mode, the relaxed synchronous setting is applied anyway.
+   */
+  public static String applyStorageProfile(SQLiteDatabase checksumDb, String profile) {
+    if (PROFILE_WAL.equals(profile)) {
+      String mode = pragma(checksumDb, "PRAGMA journal_mode=WAL");
+      checksumDb.execSQL("PRAGMA synchronous=NORMAL");
+      return mode;
+    } else if (PROFILE_RELAXED.equals(profile)) {
+      checksumDb.execSQL("PRAGMA synchronous=NORMAL");
+    }
+    return pragma(checksumDb, "PRAGMA journal_mode");
+  }
+
+  public String getHashAlgorithm() {
+    return ChecksumSchema.getHashAlgorithm(this.checksumDb);
+  }
+
+  public int read(Visitor visitor) {
+    Cursor c = this.checksumDb.rawQuery(ChecksumSchema.SELECT_CHECKSUMS, null);
+    int count = c.getCount();
+    for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) visitor.checksum(c.getString(0), c.getString(1), c.getBlob(2));
+    c.close();
+    return count;
+  }
+
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+
+  public void put(String name, String field, byte[] digest) {
+    begin();
+    this.insertStatement.bindLong(1, ChecksumSchema.key(entryId(name), fieldId(field)));
+    if (digest == null) {
+      this.insertStatement.bindNull(2);
+    } else {
+      this.insertStatement.bindBlob(2, digest);
+    }
+    this.insertStatement.execute();
+    this.metrics.count(SyncMetrics.CHECKSUM_WRITES);
+  }
+
+  public void remove(String name, String field) {
+    Long entryId = this.entryIds.get(name);
+    Integer fieldId = this.fieldIds.get(field);
+    if (entryId == null || fieldId == null) return;
+    begin();
+    this.deleteFieldStatement.bindLong(1, ChecksumSchema.key(entryId, fieldId));
+    this.deleteFieldStatement.execute();
+    this.metrics.count(SyncMetrics.CHECKSUM_WRITES);
+  }
+
+  /*
+   * Keeps the id of the entry.
+   */
+  public void clear(String name) {
+    Long entryId = this.entryIds.get(name);
+    if (entryId == null) return;
+    begin();
+    this.deleteEntryStatement.bindLong(1, ChecksumSchema.key(entryId, 0));
+    this.deleteEntryStatement.bindLong(2, ChecksumSchema.key(entryId, (int) ChecksumSchema.FIELD_MASK));
+    this.deleteEntryStatement.execute();
+    this.metrics.count(SyncMetrics.CHECKSUM_WRITES);
+  }
+
+  public void remove(String name) {
+    Long entryId = this.entryIds.get(name);
+    if (entryId == null) return;
+    clear(name);
+    this.deleteNameStatement.bindLong(1, entryId);
+    this.deleteNameStatement.execute();
+    this.metrics.count(SyncMetrics.CHECKSUM_WRITES);
+    this.entryIds.remove(name);
+  }
+
+  public void entryFinished() {
+    if (++this.pending >= this.batchSize) commit();
+  }
+
+  public void commit() {
+    if (this.checksumDb.inTransaction()) {
+      long start = SyncMetrics.start();
+      this.checksumDb.setTransactionSuccessful();
+      this.checksumDb.endTransaction();
+      this.metrics.time(SyncMetrics.PHASE_WRITES, start);
+    }
+    this.pending = 0;
+  }
+
+  /*
+   * The names and fields inserted or removed by the transaction are undone
+   * with it, so their ids are read again.
+   */
+  public void rollback() {
+    if (this.checksumDb.inTransaction()) {
+      this.checksumDb.endTransaction();
+      loadIds();
+    }
+    this.pending = 0;
+  }
+
+  public void close() {
+    rollback();
+    this.insertStatement.close();
+    this.deleteFieldStatement.close();
+    this.deleteEntryStatement.close();
+    this.deleteNameStatement.close();
+    this.insertNameStatement.close();
+    this.insertFieldStatement.close();
+  }
+
+  private void loadIds() {
+    this.entryIds.clear();
+    this.fieldIds.clear();
+    Cursor c = this.checksumDb.rawQuery("select id, name from entry", null);
+    for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) this.entryIds.put(c.getString(1), c.getLong(0));
+    c.close();
+    c = this.checksumDb.rawQuery("select id, name from field", null);
+    for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) this.fieldIds.put(c.getString(1), c.getInt(0));
+    c.close();
+  }
+
+  private void begin() {
+    if (!this.checksumDb.inTransaction()) this.checksumDb.beginTransaction();
+  }
+
+  private long entryId(String name) {
+    Long entryId = this.entryIds.get(name);
+    if (entryId == null) {
+      bind(this.insertNameStatement, 1, name);
+      entryId = this.insertNameStatement.executeInsert();
+      this.entryIds.put(name, entryId);
+    }
+    return entryId;
+  }
+
+  /*
+   * The id of the field, it must fit into the FIELD_BITS of a key or the key
+   * would name a field of the next entry.
+   */
+  private int fieldId(String field) {
+    Integer fieldId = this.fieldIds.get(field);
+    if (fieldId == null) {
+      bind(this.insertFieldStatement, 1, field);
+      long id = this.insertFieldStatement.executeInsert();
+      if (id > ChecksumSchema.FIELD_MASK) throw new IllegalStateException(String.format("Checksum DB has more than %d fields, please clean the checksum DB.", ChecksumSchema.FIELD_MASK));
+      fieldId = (int) id;
+      this.fieldIds.put(field, fieldId);
+    }
+    return fieldId;
+  }
+
+  private static void bind(SQLiteStatement statement, int index, String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+
+  private static String pragma(SQLiteDatabase checksumDb, String sql) {
+    Cursor c = checksumDb.rawQuery(sql, null);
+    String result = c.moveToFirst() ? c.getString(0) : null;
+    c.close();
+    return result;
+  }
+}
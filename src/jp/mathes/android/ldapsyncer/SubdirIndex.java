@@ -0,0 +1,156 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.mathes.android.ldapsyncer.Configuration.AndroidField;
+import jp.mathes.android.ldapsyncer.ContactSnapshot.SubDirEntry;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Contacts;
+
+/*
+ * Reads each mapped subdirectory (phones, contact methods, organizations)
+ * with one query over all people instead of one query per person and field.
+ * The rows are grouped by person and bucketed by type/label and kind, so
+ * finding the rows of an AndroidField is a hash lookup. A directory is loaded
+ * on first use and reflects the state at that time.
+ */
+public class SubdirIndex implements ContactSnapshot.Subdirs {
+  private static final String ANY_KIND = "*";
+
+  static class Row {
+    final long id;
+    final String[] values;
+
+    Row(long id, String[] values) {
+      this.id = id;
+      this.values = values;
+    }
+  }
+
+  static class Directory {
+    final String name;
+    final String[] columns;
+    final Set<String> bucketKeys = new HashSet<String>();
+    final Map<Long, Map<String, List<Row>>> people = new HashMap<Long, Map<String, List<Row>>>();
+    boolean loaded = false;
+
+    Directory(String name, String[] columns) {
+      this.name = name;
+      this.columns = columns;
+    }
+  }
+
+  private final ContentResolver resolver;
+  private final SyncMetrics metrics;
+  private final Directory[] directories;
+
+  public SubdirIndex(ContentResolver resolver, Configuration configuration, SyncMetrics metrics) {
+    this.resolver = resolver;
+    this.metrics = metrics;
+    MappingPlan plan = configuration.plan;
+    this.directories = new Directory[plan.directories.length];
+    for (int i = 0; i < this.directories.length; i++) this.directories[i] = new Directory(plan.directories[i], plan.directoryColumns[i]);
+    for (Field field : plan.fields) {
+      if (field.bucketKey != null) this.directories[field.directory].bucketKeys.add(field.bucketKey);
+    }
+  }
+
+  /*
+   * The subdirectory entries of the person matching the field, in the order of
+   * their ids. Merge workers call this concurrently.
+   */
+  synchronized public List<SubDirEntry> find(long personId, Field field) {
+    if (field.directory < 0 || field.bucketKey == null) return Collections.emptyList();
+    Directory directory = this.directories[field.directory];
+    if (!directory.loaded) load(directory);
+    Map<String, List<Row>> buckets = directory.people.get(personId);
+    List<Row> rows = buckets == null ? null : buckets.get(field.bucketKey);
+    if (rows == null) return Collections.emptyList();
+    List<SubDirEntry> result = new LinkedList<SubDirEntry>();
+    for (Row row : rows) result.add(new SubDirEntry(field.androidField, row.id, row.values[field.directoryColumn]));
+    return result;
+  }
+
+  private void load(Directory directory) {
+    long start = SyncMetrics.start();
+    this.metrics.count(SyncMetrics.ANDROID_QUERIES);
+    Cursor c = this.resolver.query(Uri.withAppendedPath(Contacts.CONTENT_URI, directory.name), null, null, null, LDAPSyncer.ID);
+    int idColumn = c.getColumnIndex(LDAPSyncer.ID);
+    int personColumn = c.getColumnIndex(LDAPSyncer.PERSON);
+    int typeColumn = c.getColumnIndex(LDAPSyncer.TYPE);
+    int kindColumn = c.getColumnIndex(LDAPSyncer.KIND);
+    int labelColumn = c.getColumnIndex(LDAPSyncer.LABEL);
+    int[] valueColumns = new int[directory.columns.length];
+    for (int i = 0; i < valueColumns.length; i++) valueColumns[i] = c.getColumnIndex(directory.columns[i]);
+    for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+      String type = typeColumn < 0 ? null : c.getString(typeColumn);
+      String kind = kindColumn < 0 ? null : c.getString(kindColumn);
+      String label = labelColumn < 0 ? null : c.getString(labelColumn);
+      Row row = null;
+      for (String candidate : rowKeys(type, kind, label)) {
+        if (!directory.bucketKeys.contains(candidate)) continue;
+        if (row == null) {
+          String[] values = new String[valueColumns.length];
+          for (int i = 0; i < valueColumns.length; i++) values[i] = valueColumns[i] < 0 ? null : c.getString(valueColumns[i]);
+          row = new Row(c.getLong(idColumn), values);
+        }
+        Long personId = c.getLong(personColumn);
+        Map<String, List<Row>> buckets = directory.people.get(personId);
+        if (buckets == null) {
+          buckets = new HashMap<String, List<Row>>(4);
+          directory.people.put(personId, buckets);
+        }
+        List<Row> rows = buckets.get(candidate);
+        if (rows == null) {
+          rows = new ArrayList<Row>(2);
+          buckets.put(candidate, rows);
+        }
+        rows.add(row);
+      }
+    }
+    c.close();
+    directory.loaded = true;
+    this.metrics.time(SyncMetrics.PHASE_ANDROID_SCAN, start);
+  }
+
+  /*
+   * Fields of a custom type are matched by their label, all others by their
+   * type. A field without kind matches rows of any kind, a field without type
+   * matches nothing.
+   */
+  static String bucketKey(AndroidField androidField) {
+    if (androidField.typeCode == Configuration.NO_CODE) return null;
+    String kind = androidField.kindCode == Configuration.NO_CODE ? ANY_KIND : Integer.toString(androidField.kindCode);
+    if (androidField.customType) return labelKey(androidField.typeLabel, kind);
+    return typeKey(Integer.toString(androidField.typeCode), kind);
+  }
+
+  /*
+   * The bucket keys a row of the given type, kind and label can match.
+   */
+  static String[] rowKeys(String type, String kind, String label) {
+    return new String[] { typeKey(type, kind), typeKey(type, ANY_KIND), labelKey(label, kind), labelKey(label, ANY_KIND) };
+  }
+
+  private static String typeKey(String type, String kind) {
+    return "T\u0000" + type + "\u0000" + kind;
+  }
+
+  private static String labelKey(String label, String kind) {
+    return "L\u0000" + label + "\u0000" + kind;
+  }
+}
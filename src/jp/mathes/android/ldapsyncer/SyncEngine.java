@@ -0,0 +1,715 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.mathes.android.ldapsyncer.Configuration.AndroidField;
+import jp.mathes.android.ldapsyncer.Configuration.Partition;
+import jp.mathes.android.ldapsyncer.ContactSnapshot.SubDirEntry;
+import jp.mathes.android.ldapsyncer.MappingPlan.Field;
+import jp.mathes.android.ldapsyncer.exceptions.StopException;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/*
+ * The sync itself, free of the platform: the contacts, the LDAP directory
+ * and the checksums of the last sync are reached through a ContactStore, a
+ * DirectoryStore and a ChecksumStore. The service runs it on the contacts
+ * provider, the LDAP server of the configuration and the checksum DB, the
+ * load test of the benchmarks on in-memory stores and an embedded LDAP
+ * server.
+ */
+public class SyncEngine {
+
+  private final SyncLog log;
+  private final DirectoryStore directory;
+  private boolean interrupted = false;
+  private FieldHasher hasher;
+  private ContactStore contacts;
+  private AndroidWriteBatcher androidWriter;
+  private LDAPWritePipeline ldapWriter;
+  private MergePipeline merges;
+  private SyncMetrics metrics;
+  // false once a write of this sync failed, the high-water mark is then kept
+  private boolean clean;
+
+  public SyncEngine(SyncLog log, DirectoryStore directory) {
+    this.log = log;
+    this.directory = directory;
+  }
+
+  /*
+   * Stops the running sync at the next entry, it throws a StopException.
+   */
+  public void stop() {
+    this.interrupted = true;
+  }
+
+  public boolean isStopped() {
+    return this.interrupted;
+  }
+
+  /*
+   * Clears the stop of an earlier sync.
+   */
+  public void reset() {
+    this.interrupted = false;
+  }
+
+  /*
+   * Decides the merges of all entries into a plan first and executes it
+   * afterwards, a dry run only writes the plan. The sync state, the plan
+   * and the change journal are kept in the data directory, the result is
+   * set in the metrics. Returns the delay before the sync is to be retried,
+   * -1 if it is not. The stores are closed when it returns.
+   */
+  public long run(Configuration configuration, ContactStore contacts, ChecksumStore checksumStore, String dataDirectory, boolean fullSync, String partitionName,
+      boolean dryRun, int attempt, SyncMetrics metrics) {
+    this.clean = true;
+    this.contacts = contacts;
+    this.metrics = metrics;
+    long retryDelay = -1;
+    Map<Partition, LDAPConnection> readConns = new LinkedHashMap<Partition, LDAPConnection>();
+    LDAPConnection writeConn = null;
+    boolean completed = false;
+    LDAPEntryStream search = null;
+    ChecksumCache checksums = null;
+    SyncPlan plan = new SyncPlan();
+    try {
+      String hashAlgorithm = checksumStore.getHashAlgorithm();
+      if (!FieldHasher.isSupported(hashAlgorithm)) {
+        this.log.error(String.format("Error: Checksum DB uses the unknown hash algorithm '%s', please clean the checksum DB.", hashAlgorithm));
+        return -1;
+      }
+      if (!hashAlgorithm.equals(configuration.hashAlgorithm)) {
+        this.log.warn(String.format("Checksum DB uses hash algorithm '%s', clean the checksum DB to switch to '%s'.", hashAlgorithm, configuration.hashAlgorithm));
+      }
+      this.hasher = FieldHasher.forName(hashAlgorithm);
+      checksums = ChecksumCache.load(checksumStore, configuration, metrics);
+      final ChecksumCache syncChecksums = checksums;
+      final SyncPlan syncPlan = plan;
+      this.androidWriter = new AndroidWriteBatcher(contacts, configuration.androidBatchSize, metrics, new AndroidWriteBatcher.FailureListener() {
+        public void entryFailed(String name) {
+          log.error(String.format("Error writing '%s' to Android", name));
+          syncChecksums.revert(name);
+          SyncEngine.this.contacts.reject(name);
+          clean = false;
+        }
+      });
+      List<Partition> partitions = configuration.partitions;
+      if (partitionName != null) {
+        Partition partition = configuration.getPartition(partitionName);
+        if (partition == null) {
+          this.log.error(String.format("Error: Partition '%s' is not configured.", partitionName));
+          return -1;
+        }
+        partitions = Collections.singletonList(partition);
+      }
+      // each partition is searched on a connection of its own, writes run on another one
+      for (Partition partition : partitions) readConns.put(partition, this.directory.getConnection(configuration));
+      writeConn = this.directory.getConnection(configuration);
+      this.ldapWriter = new LDAPWritePipeline(writeConn, configuration.ldapWriteWindow, metrics, new LDAPWritePipeline.FailureListener() {
+        public void entryFailed(String name, String message) {
+          log.error(String.format("Error writing '%s' to LDAP: %s", name, message));
+          syncChecksums.revert(name);
+          SyncEngine.this.contacts.reject(name);
+          clean = false;
+        }
+      });
+      this.merges = new MergePipeline(checksums, configuration.mergeWorkers, configuration.mergeQueueSize, metrics, new MergePipeline.Applier() {
+        public void apply(EntryMerge merge) {
+          for (SyncLog.Line message : merge.getMessages()) log.add(message);
+          // later merges of the entry start from these checksums
+          if (merge.isChecksumsChanged()) syncChecksums.replace(merge.getId(), merge.getChecksums());
+          String id = merge.getId();
+          if (merge.getPartition() != null && syncChecksums.exists(id) && !merge.getPartition().equals(syncChecksums.getPartition(id))) syncPlan.move(id, merge.getPartition());
+          syncPlan.add(merge);
+        }
+      });
+      SyncState state = SyncState.load(dataDirectory);
+      Map<String, String> highWaterMarks = new HashMap<String, String>();
+      Set<Partition> deltaPartitions = new HashSet<Partition>();
+      String[] attributes = configuration.getSearchAttributes();
+      search = new LDAPEntryStream(configuration.getSearchScope(), attributes, configuration.searchPageSize, metrics);
+      for (Partition partition : partitions) {
+        Filter filter = Filter.create(configuration.getFilter(partition));
+        if (configuration.incremental && !fullSync && state.allowsDelta(partition.getName(), configuration.getSearchKey(partition), configuration.fullSyncDays)) {
+          String highWaterMark = state.getHighWaterMark(partition.getName());
+          this.log.info(String.format("Reading LDAP entries changed since '%s'%s", highWaterMark, partition.getName().length() == 0 ? "" : " in partition '"
+              + partition.getName() + "'"));
+          filter = Filter.createANDFilter(filter, Filter.createGreaterOrEqualFilter(configuration.markAttribute, highWaterMark));
+          highWaterMarks.put(partition.getName(), highWaterMark);
+          deltaPartitions.add(partition);
+        }
+        search.add(partition.getName(), readConns.get(partition), partition.bases, filter.toString());
+      }
+      search.start();
+      long start = SyncMetrics.start();
+      contacts.load(configuration, metrics);
+      metrics.time(SyncMetrics.PHASE_ANDROID_SCAN, start);
+      Set<String> changedIds = new HashSet<String>();
+      SearchResultEntry sre;
+      while ((sre = search.next()) != null) {
+        if (this.interrupted) throw new StopException();
+        String id = sre.getAttributeValue(configuration.IdOnLDAP);
+        if (!deltaPartitions.isEmpty()) changedIds.add(id);
+        if (configuration.incremental) {
+          highWaterMarks.put(search.getPartition(), SyncState.max(highWaterMarks.get(search.getPartition()), sre.getAttributeValue(configuration.markAttribute)));
+        }
+        int count = contacts.match(id);
+        this.merges.submit(id, search.getPartition(), new LDAPEntryTask(sre, count, count > 0 ? contacts.current() : null, configuration));
+      }
+      search.close();
+      if (!deltaPartitions.isEmpty()) {
+        // list all entries with their id only to find the deleted ones and the unchanged ones changed on Android
+        search = new LDAPEntryStream(configuration.getSearchScope(), new String[] { configuration.IdOnLDAP }, configuration.searchPageSize, metrics);
+        for (Partition partition : deltaPartitions) search.add(partition.getName(), readConns.get(partition), partition.bases, configuration.getFilter(partition));
+        search.start();
+        while ((sre = search.next()) != null) {
+          if (this.interrupted) throw new StopException();
+          String id = sre.getAttributeValue(configuration.IdOnLDAP);
+          if (changedIds.contains(id)) continue;
+          int count = contacts.match(id);
+          this.merges.submit(id, search.getPartition(), new VerifyTask(sre, attributes, count, count > 0 ? contacts.current() : null, configuration, writeConn));
+        }
+        search.close();
+      }
+      for (Iterator<ContactSnapshot> unseen = contacts.unseen(); unseen.hasNext();) {
+        if (this.interrupted) throw new StopException();
+        ContactSnapshot contact = unseen.next();
+        // a contact belongs to the partition its LDAP entry was last found in, a new one to the partition synced if its id is in the range
+        boolean synced = checksums.exists(contact.getId());
+        if (partitionName != null) {
+          Partition partition = partitions.get(0);
+          if (synced ? !partitionName.equals(checksums.getPartition(contact.getId())) : !partition.containsId(contact.getId())) continue;
+        }
+        this.merges.submit(contact.getId(), synced ? null : partitionName, new AndroidContactTask(contact, configuration));
+      }
+      this.merges.finish();
+      plan.revert(checksums);
+      this.log.info(plan.write(dataDirectory));
+      if (dryRun) {
+        completed = true;
+        return -1;
+      }
+      execute(plan, checksums, checksumStore);
+      contacts.save();
+      if (configuration.incremental && this.clean) {
+        for (Partition partition : partitions) {
+          state.update(partition.getName(), configuration.getSearchKey(partition), highWaterMarks.get(partition.getName()), !deltaPartitions.contains(partition));
+        }
+        state.save();
+      }
+      completed = true;
+    } catch (IOException e) {
+      this.log.error("Error: Unexpected IOException");
+      e.printStackTrace();
+    } catch (LDAPException e) {
+      if (LDAPConnectionManager.isTransient(e) && attempt < configuration.retries) {
+        this.log.error(String.format("Error: LDAP connection failed (%s)", e.getResultCode()));
+        retryDelay = (long) configuration.retryDelay << attempt;
+      } else {
+        this.log.error("Error: Unexpected LDAPException (e.g. connection failed)");
+        e.printStackTrace();
+      }
+    } catch (IllegalArgumentException e) {
+      this.log.error("Error: Unexpected IllegalArgumentException");
+      e.printStackTrace();
+    } catch (IllegalStateException e) {
+      this.log.error("Error: " + e.getMessage());
+    } catch (StopException e) {
+      this.log.info("Aborting sync...");
+    }
+    finally {
+      if (this.merges != null) {
+        this.merges.close();
+        this.merges = null;
+      }
+      contacts.close();
+      if (checksums != null) {
+        plan.revert(checksums);
+        if (LDAPSyncer.DEBUG) System.out.println("Writing pending Android changes");
+        this.androidWriter.flush();
+        this.androidWriter = null;
+        if (this.ldapWriter != null) {
+          if (LDAPSyncer.DEBUG) System.out.println("Waiting for pending LDAP writes");
+          this.ldapWriter.complete();
+          this.ldapWriter = null;
+        }
+        if (LDAPSyncer.DEBUG) System.out.println("Writing changed checksums");
+        try {
+          checksums.flush(checksumStore);
+        } catch (IllegalStateException e) {
+          this.log.error("Error: " + e.getMessage());
+        }
+      }
+      checksumStore.close();
+      if (search != null) search.close();
+      // a connection is only kept if the sync completed, it may still be reading a page otherwise
+      for (LDAPConnection readConn : readConns.values()) this.directory.release(readConn, !completed);
+      if (writeConn != null) this.directory.release(writeConn, !completed);
+      this.contacts = null;
+      this.metrics = null;
+      metrics.set("result", completed ? "completed" : this.interrupted ? "aborted" : retryDelay >= 0 ? "retry" : "failed");
+    }
+    return retryDelay;
+  }
+
+  /*
+   * The merges run by the MergePipeline: an LDAP entry with its Android
+   * contact (if count is greater than zero), an LDAP entry listed as unchanged
+   * by an incremental sync and an Android contact without LDAP entry.
+   */
+  private class LDAPEntryTask implements MergePipeline.Task {
+    private final SearchResultEntry sre;
+    private final int count;
+    private final ContactSnapshot contact;
+    private final Configuration configuration;
+
+    LDAPEntryTask(SearchResultEntry sre, int count, ContactSnapshot contact, Configuration configuration) {
+      this.sre = sre;
+      this.count = count;
+      this.contact = contact;
+      this.configuration = configuration;
+    }
+
+    public void run(EntryMerge merge) throws LDAPException {
+      syncLDAPEntry(this.sre, this.count, this.contact, merge, this.configuration);
+    }
+  }
+
+  private class VerifyTask implements MergePipeline.Task {
+    private final SearchResultEntry listed;
+    private final String[] attributes;
+    private final int count;
+    private final ContactSnapshot contact;
+    private final Configuration configuration;
+    private final LDAPConnection conn;
+
+    VerifyTask(SearchResultEntry listed, String[] attributes, int count, ContactSnapshot contact, Configuration configuration, LDAPConnection conn) {
+      this.listed = listed;
+      this.attributes = attributes;
+      this.count = count;
+      this.contact = contact;
+      this.configuration = configuration;
+      this.conn = conn;
+    }
+
+    public void run(EntryMerge merge) throws LDAPException {
+      verifyLDAPEntry(this.listed, this.attributes, this.count, this.contact, merge, this.configuration, this.conn);
+    }
+  }
+
+  private class AndroidContactTask implements MergePipeline.Task {
+    private final ContactSnapshot contact;
+    private final Configuration configuration;
+
+    AndroidContactTask(ContactSnapshot contact, Configuration configuration) {
+      this.contact = contact;
+      this.configuration = configuration;
+    }
+
+    public void run(EntryMerge merge) throws LDAPException {
+      syncAndroidContact(this.contact, merge, this.configuration);
+    }
+  }
+
+  /*
+   * Executes the plan in chunks of one checksum batch. The Android writes of
+   * a chunk are batched, its LDAP writes are sent grouped by type (the
+   * deletes first and completed before the rest, so a DN can be added again;
+   * modifies never change a DN) and its checksums are written once
+   * all writes of the chunk were confirmed. The checksums are replaced before
+   * the writes are queued, so a failing write reverts them, as do the LDAP
+   * writes a chunk left unsent when it is aborted. The partition
+   * moves and the confirmed contacts follow the last chunk.
+   */
+  private void execute(SyncPlan plan, ChecksumCache checksums, ChecksumStore checksumStore) throws LDAPException, StopException {
+    List<EntryMerge> merges = plan.getMerges();
+    int chunkSize = checksumStore.getBatchSize();
+    for (int from = 0; from < merges.size(); from += chunkSize) {
+      if (this.interrupted) throw new StopException();
+      List<EntryMerge> chunk = merges.subList(from, Math.min(from + chunkSize, merges.size()));
+      for (EntryMerge merge : chunk) {
+        String id = merge.getId();
+        if (merge.isChecksumsChanged()) checksums.replace(id, merge.getChecksums());
+        if (merge.hasAndroidWrites()) merge.getAndroidWrites().drainTo(this.androidWriter);
+        if (this.androidWriter.isFull()) this.androidWriter.flush();
+        if (merge.isRejected()) this.contacts.reject(id);
+      }
+      // a write the pipeline took is confirmed or reported failed by it, the others are reverted here if the chunk is left early
+      boolean[] sent = new boolean[chunk.size()];
+      boolean complete = false;
+      try {
+        boolean deletes = false;
+        for (int i = 0; i < chunk.size(); i++) {
+          EntryMerge merge = chunk.get(i);
+          if (!(merge.getLDAPWrite() instanceof DeleteRequest)) continue;
+          this.ldapWriter.delete(merge.getId(), (DeleteRequest) merge.getLDAPWrite());
+          sent[i] = true;
+          deletes = true;
+        }
+        // the pipeline does not keep the order of its requests, an add must not overtake the delete of its DN
+        if (deletes) this.ldapWriter.complete();
+        for (int i = 0; i < chunk.size(); i++) {
+          EntryMerge merge = chunk.get(i);
+          if (!(merge.getLDAPWrite() instanceof ModifyRequest)) continue;
+          this.ldapWriter.modify(merge.getId(), (ModifyRequest) merge.getLDAPWrite());
+          sent[i] = true;
+        }
+        for (int i = 0; i < chunk.size(); i++) {
+          EntryMerge merge = chunk.get(i);
+          if (!(merge.getLDAPWrite() instanceof AddRequest)) continue;
+          this.ldapWriter.add(merge.getId(), (AddRequest) merge.getLDAPWrite());
+          sent[i] = true;
+        }
+        complete = true;
+      } finally {
+        if (!complete) revertUnsent(chunk, sent, checksums);
+      }
+      this.androidWriter.flush();
+      this.ldapWriter.complete();
+      checksums.flush(checksumStore);
+    }
+    plan.applyMoves(checksums);
+    checksums.flush(checksumStore);
+    plan.applyConfirmations(this.contacts);
+  }
+
+  /*
+   * Reverts the checksums of the merges whose LDAP writes were not sent and
+   * rejects their contacts, as if the writes had failed. Their Android writes
+   * are still made.
+   */
+  private void revertUnsent(List<EntryMerge> chunk, boolean[] sent, ChecksumCache checksums) {
+    int unsent = 0;
+    for (int i = 0; i < chunk.size(); i++) {
+      EntryMerge merge = chunk.get(i);
+      if (sent[i] || merge.getLDAPWrite() == null) continue;
+      checksums.revert(merge.getId());
+      this.contacts.reject(merge.getId());
+      unsent++;
+    }
+    if (unsent > 0) {
+      this.log.error(String.format("Error: %d LDAP writes were not sent", unsent));
+      this.clean = false;
+    }
+  }
+
+  /*
+   * The methods below run on the merge workers, they only read the
+   * configuration, the contact snapshots and the LDAP entries and record
+   * everything they change in the EntryMerge.
+   */
+
+  private void syncLDAPEntry(SearchResultEntry sre, int count, ContactSnapshot contact, EntryMerge merge, Configuration configuration) throws LDAPException {
+    String id = merge.getId();
+    if (LDAPSyncer.DEBUG) System.out.println(String.format("Looking at '%s' in LDAP", id));
+    if (count > 0) {
+      if (count > 1) merge.warn(String.format("Warning: More than one records for id '%s' in Android, using first one, please clean up.", id));
+      if (!mergeEntries(sre, contact, merge, configuration)) conflict(merge, String.format("There is a conflict for id '%s', please resolve manually", id));
+    } else {
+      if (configuration.deleteOnLDAP && ((merge.exists() && equalsChecksumDb(sre, merge, configuration) && !configuration.allChangesFromLDAP) ||
+          (configuration.allChangesFromAndroid))) {
+        merge.log(String.format("Deleting '%s' in LDAP", id));
+        deleteEntryInLDAP(sre, merge);
+        merge.remove();
+      } else if (configuration.createOnAndroid && ((!merge.exists() && !configuration.allChangesFromAndroid) || configuration.allChangesFromLDAP)) {
+        merge.log(String.format("Adding '%s' to Android", id));
+        addEntryInAndroid(sre, merge, configuration);
+      } else {
+        conflict(merge, String.format("There is a (delete/change) conflict for name '%s', please resolve manually", id));
+      }
+    }
+  }
+
+  /*
+   * An entry unchanged in LDAP since the last sync. If its Android contact
+   * still matches the record hash nothing is to do, otherwise the entry is
+   * read completely and synced as usual.
+   */
+  private void verifyLDAPEntry(SearchResultEntry listed, String[] attributes, int count, ContactSnapshot contact, EntryMerge merge, Configuration configuration,
+      LDAPConnection conn) throws LDAPException {
+    if (count > 0) {
+      byte[] recordHash = merge.get(ChecksumCache.RECORD);
+      if (recordHash != null && Arrays.equals(recordHash, this.hasher.record(getAndroidHashes(contact, merge, configuration)))) {
+        merge.confirm(contact.getPersonId());
+        return;
+      }
+    }
+    if (LDAPSyncer.DEBUG) System.out.println(String.format("Reading unchanged '%s' from LDAP", merge.getId()));
+    long start = SyncMetrics.start();
+    SearchResultEntry sre = conn.getEntry(listed.getDN(), attributes);
+    this.metrics.count(SyncMetrics.LDAP_GETS);
+    this.metrics.latency(SyncMetrics.LATENCY_GET, start);
+    if (sre != null) syncLDAPEntry(sre, count, contact, merge, configuration);
+  }
+
+  private void conflict(EntryMerge merge, String message) {
+    merge.warn(message);
+    this.metrics.count(SyncMetrics.CONFLICTS);
+  }
+
+  /*
+   * An Android contact without LDAP entry.
+   */
+  private void syncAndroidContact(ContactSnapshot contact, EntryMerge merge, Configuration configuration) throws LDAPException {
+    String id = merge.getId();
+    if (LDAPSyncer.DEBUG) System.out.println(String.format("'%s' in Android is not seen", id));
+    if (configuration.deleteOnAndroid && ((merge.exists() && equalsChecksumDb(contact, merge, configuration) && !configuration.allChangesFromAndroid) ||
+        (configuration.allChangesFromLDAP))) {
+      merge.log(String.format("Deleting '%s' in Android", id));
+      deleteEntryInAndroid(contact, merge);
+      merge.remove();
+    } else if (configuration.createOnLDAP && ((!merge.exists() && !configuration.allChangesFromLDAP) || configuration.allChangesFromAndroid)) {
+      merge.log(String.format("Adding '%s' to LDAP", id));
+      addEntryInLDAP(contact, merge, configuration);
+    } else {
+      conflict(merge, String.format("There is a (delete/change) conflict for name '%s', please resolve manually", id));
+    }
+  }
+
+  /*
+   * The field hashes of a contact, taken from the checksum DB if the contact
+   * is unchanged since its checksums were written completely.
+   */
+  private byte[][] getAndroidHashes(ContactSnapshot contact, EntryMerge merge, Configuration configuration) {
+    if (merge.get(ChecksumCache.RECORD) != null && this.contacts.isUnchanged(contact.getPersonId())) {
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("'%s' unchanged in Android", merge.getId()));
+      Field[] fields = configuration.plan.fields;
+      byte[][] hashes = new byte[fields.length][];
+      for (int i = 0; i < hashes.length; i++) hashes[i] = merge.get(fields[i].ldapName);
+      return hashes;
+    }
+    return getFieldHashes(contact, merge, configuration);
+  }
+
+  private byte[][] getFieldHashes(ContactSnapshot contact, EntryMerge merge, Configuration configuration) {
+    Field[] fields = configuration.plan.fields;
+    byte[][] hashes = new byte[fields.length][];
+    for (int i = 0; i < hashes.length; i++) hashes[i] = getFieldHash(fields[i], contact, merge.get(fields[i].ldapName));
+    return hashes;
+  }
+
+  private void updateRecordHash(EntryMerge merge, Configuration configuration) {
+    Field[] fields = configuration.plan.fields;
+    byte[][] storedHashes = new byte[fields.length][];
+    for (int i = 0; i < storedHashes.length; i++) storedHashes[i] = merge.get(fields[i].ldapName);
+    merge.put(ChecksumCache.RECORD, this.hasher.record(storedHashes));
+  }
+
+  /*
+   * The hash of the field of the contact, stored is its hash in the checksum
+   * DB, see FieldHasher.hash(List, byte[]).
+   */
+  private byte[] getFieldHash(Field field, ContactSnapshot contact, byte[] stored) {
+    if (field.isDirect()) {
+      return this.hasher.hash(contact.getValue(field));
+    } else {
+      return this.hasher.hash(contact.getValues(field), stored);
+    }
+  }
+
+  private byte[] getFieldHash(String fieldName, SearchResultEntry sre) {
+    return this.hasher.hash(sre.getAttributeValues(fieldName));
+  }
+
+  private boolean equalsChecksumDb(ContactSnapshot contact, EntryMerge merge, Configuration configuration) {
+    if (merge.get(ChecksumCache.RECORD) != null && this.contacts.isUnchanged(contact.getPersonId())) return true;
+    for (Field field : configuration.plan.fields) {
+      byte[] stored = merge.get(field.ldapName);
+      if (Arrays.equals(getFieldHash(field, contact, stored), stored)) continue;
+      return false;
+    }
+    return true;
+  }
+
+  private boolean equalsChecksumDb(SearchResultEntry sre, EntryMerge merge, Configuration configuration) {
+    for (Field field : configuration.plan.fields) {
+      if (Arrays.equals(getFieldHash(field.ldapName, sre), merge.get(field.ldapName))) continue;
+      return false;
+    }
+    return true;
+  }
+
+  private boolean mergeEntries(SearchResultEntry sre, ContactSnapshot contact, EntryMerge merge, Configuration configuration) {
+    boolean success = true;
+    boolean changed = false;
+    String id = merge.getId();
+    Field[] fields = configuration.plan.fields;
+    byte[][] LdapHashes = new byte[fields.length][];
+    for (int i = 0; i < LdapHashes.length; i++) LdapHashes[i] = getFieldHash(fields[i].ldapName, sre);
+    byte[][] androidHashes = getAndroidHashes(contact, merge, configuration);
+    byte[] recordHash = merge.get(ChecksumCache.RECORD);
+    if (recordHash != null && Arrays.equals(recordHash, this.hasher.record(LdapHashes)) && Arrays.equals(recordHash, this.hasher.record(androidHashes))) {
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Record hash for name '%s' unchanged on both sides", id));
+      merge.confirm(contact.getPersonId());
+      return true;
+    }
+    merge.remove(ChecksumCache.RECORD);
+    LDAPEntryChanges ldapChanges = new LDAPEntryChanges(sre);
+    for (int i = 0; i < LdapHashes.length; i++) {
+      Field field = fields[i];
+      String fieldName = field.ldapName;
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Starting merge for field '%s'", fieldName));
+      byte[] LdapHash = LdapHashes[i];
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Got hash values from LDAP: '%s'", ChecksumSchema.toHex(LdapHash)));
+      byte[] androidHash = androidHashes[i];
+      if (LDAPSyncer.DEBUG) System.out.println(String.format("Got hash values from Android: '%s'", ChecksumSchema.toHex(androidHash)));
+      byte[] hashValue = merge.get(fieldName);
+      if (LDAPSyncer.DEBUG && hashValue != null) System.out.println(String.format("Hash in checksumDB for name '%s' and field '%s' is '%s'", id, fieldName, ChecksumSchema.toHex(hashValue)));
+      int decision = configuration.rules.decide(hashValue, LdapHash, androidHash);
+      if (decision == MergeRules.STORE) {
+        merge.put(fieldName, LdapHash);
+      } else if (decision == MergeRules.TO_ANDROID) {
+        if (LDAPSyncer.DEBUG) System.out.println("LDAP has changes, transfering to Android");
+        copyLDAP2Android(field, sre, contact, merge);
+        changed = true;
+        merge.put(fieldName, LdapHash);
+      } else if (decision == MergeRules.TO_LDAP) {
+        if (LDAPSyncer.DEBUG) System.out.println("Android has changes, transfering to LDAP");
+        copyAndroid2LDAP(field, contact, ldapChanges);
+        changed = true;
+        merge.put(fieldName, androidHash);
+      } else if (decision == MergeRules.CONFLICT) {
+        if (LDAPSyncer.DEBUG) System.out.println("No way found to merge, raising conflict");
+        success = false;
+        break;
+      }
+    }
+    // the fields merged before a conflict are written all the same, their checksums are already updated
+    if (!ldapChanges.isEmpty()) merge.modify(ldapChanges.toModifyRequest());
+    if (!success) return false;
+    updateRecordHash(merge, configuration);
+    merge.confirm(contact.getPersonId());
+    if (changed) merge.log(String.format("Changed '%s'", id));
+    return success;
+  }
+
+  private void copyAndroid2LDAP(Field field, ContactSnapshot contact, LDAPEntryChanges ldapChanges) {
+    ldapChanges.setValues(field.ldapName, contact.getValues(field));
+  }
+
+
+  private void copyLDAP2Android(Field field, SearchResultEntry sre, ContactSnapshot contact, EntryMerge merge) {
+    String[] values = sre.getAttributeValues(field.ldapName);
+    AndroidWriteBatcher androidWrites = merge.getAndroidWrites();
+    merge.reject();
+    AndroidWriteBatcher.Person person = androidWrites.existingPerson(contact.getPersonId(), contact.getId());
+    AndroidField androidField = field.androidField;
+    // delete old values
+    if (!field.isDirect()) {
+      for (SubDirEntry subdirEntry : contact.getSubdirEntries(field)) androidWrites.deleteRow(person, androidField.directory, subdirEntry.id);
+    }
+    // update (direct) or insert (subdir) values
+    if (values != null) for (String value : values) {
+      if (field.isDirect()) {
+        androidWrites.updatePerson(person, androidField.name, value);
+      } else {
+        androidWrites.insertRow(person, androidField.directory, newSubDirValues(androidField, value));
+      }
+    }
+  }
+
+  private Map<String, Object> newSubDirValues(AndroidField androidField, String value) {
+    Map<String, Object> newSubDirValues = new LinkedHashMap<String, Object>();
+    newSubDirValues.put(androidField.name, value);
+    if (androidField.typeCode != Configuration.NO_CODE) newSubDirValues.put(LDAPSyncer.TYPE, androidField.typeCode);
+    if (androidField.kindCode != Configuration.NO_CODE) newSubDirValues.put(LDAPSyncer.KIND, androidField.kindCode);
+    if (androidField.typeLabel != null && androidField.typeLabel.length() > 0) newSubDirValues.put(LDAPSyncer.LABEL, androidField.typeLabel);
+    return newSubDirValues;
+  }
+
+  private void addEntryInAndroid(SearchResultEntry sre, EntryMerge merge, Configuration configuration) {
+    String id = merge.getId();
+    AndroidWriteBatcher androidWrites = merge.getAndroidWrites();
+    Map<String, Object> newValues = new LinkedHashMap<String, Object>();
+    AndroidWriteBatcher.Person person = androidWrites.createPerson(id, newValues);
+    for (Field field : configuration.plan.fields) {
+      String[] values = sre.getAttributeValues(field.ldapName);
+      if (values != null) {
+        for (String value : values) {
+          if (value == null || value.length() == 0) continue;
+          if (field.isDirect()) {
+            newValues.put(field.androidField.name, value);
+          } else {
+            androidWrites.insertRow(person, field.androidField.directory, newSubDirValues(field.androidField, value));
+          }
+        }
+        merge.put(field.ldapName, this.hasher.hash(values));
+      }
+    }
+    updateRecordHash(merge, configuration);
+    if (LDAPSyncer.DEBUG) System.out.println(String.format("Queued adding '%s'", id));
+  }
+
+  private void addEntryInLDAP(ContactSnapshot contact, EntryMerge merge, Configuration configuration) throws LDAPException {
+    String id = merge.getId();
+    List<Attribute> attributes = new LinkedList<Attribute>();
+    for (Field field : configuration.plan.fields) {
+      String fieldName = field.ldapName;
+      merge.remove(fieldName);
+      if (field.isDirect()) {
+        String value = contact.getValue(field);
+        if (value != null && value.length() > 0) {
+          attributes.add(new Attribute(fieldName, value));
+          merge.put(fieldName, this.hasher.hash(value));
+        }
+      } else {
+        List<String> values = new LinkedList<String>();
+        for (SubDirEntry subdirEntry : contact.getSubdirEntries(field)) {
+          if (subdirEntry.value != null && subdirEntry.value.length() > 0) {
+            attributes.add(new Attribute(fieldName, subdirEntry.value));
+            values.add(subdirEntry.value);
+          }
+        }
+        if (values.size() > 0) {
+          merge.put(fieldName, this.hasher.hash(values));
+        }
+      }
+    }
+    DN dn = new DN(new RDN(configuration.DNLeafOnLDAP, id), new DN(configuration.getNewEntryBase(merge.getPartition())));
+    if (configuration.plan.get(configuration.DNLeafOnLDAP) == null) {
+      attributes.add(new Attribute(configuration.DNLeafOnLDAP, id));
+    }
+    for (String dnLeafCopy : configuration.DNLeafOnLDAPCopy) {
+      attributes.add(new Attribute(dnLeafCopy, id));
+    }
+    attributes.add(new Attribute("objectClass", configuration.ldapClass));
+    merge.add(new AddRequest(dn, attributes));
+    updateRecordHash(merge, configuration);
+    merge.confirm(contact.getPersonId());
+  }
+
+  private void deleteEntryInAndroid(ContactSnapshot contact, EntryMerge merge) {
+    AndroidWriteBatcher androidWrites = merge.getAndroidWrites();
+    merge.reject();
+    androidWrites.deletePerson(androidWrites.existingPerson(contact.getPersonId(), contact.getId()));
+  }
+
+  private void deleteEntryInLDAP(SearchResultEntry sre, EntryMerge merge) {
+    merge.delete(new DeleteRequest(sre.getDN()));
+  }
+}
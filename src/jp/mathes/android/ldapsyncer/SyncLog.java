@@ -0,0 +1,270 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/*
+ * The log of the syncer. Lines are kept in a bounded ring buffer, handed to
+ * the listener (the log view of the activity) in batches at most FRAME_RATE
+ * times per second on the main thread, and appended to a rolling log file in
+ * the data directory by a writer thread, so logging never waits for the UI
+ * or the file. The writer's queue is bounded like the buffer, lines that do
+ * not fit while the file falls behind are dropped and their number is noted
+ * in the file. The syncer only knows the log, a listener is attached while
+ * the activity is shown and is only weakly referenced.
+ */
+public class SyncLog {
+  public static final int INFO = 0;
+  public static final int WARN = 1;
+  public static final int ERROR = 2;
+
+  public static final String LOG_FILE = "sync.log";
+  private static final int FRAME_RATE = 4;
+  private static final long MAX_FILE_SIZE = 256 * 1024;
+  private static final int FILE_QUEUE_SIZE = 1000;
+  private static final char[] LEVELS = { 'I', 'W', 'E' };
+
+  static public class Line {
+    final long time = System.currentTimeMillis();
+    final int level;
+    final String message;
+
+    public Line(int level, String message) {
+      this.level = level;
+      this.message = message;
+    }
+
+    public int getLevel() {
+      return this.level;
+    }
+
+    public String getMessage() {
+      return this.message;
+    }
+  }
+
+  /*
+   * Called on the main thread. With reset set the lines replace all shown
+   * so far, otherwise they are appended.
+   */
+  public interface Listener {
+    void onLog(List<Line> lines, boolean reset);
+  }
+
+  private final Line[] buffer;
+  // number of lines logged so far and up to which the listener has them
+  private long count = 0;
+  private long shown = 0;
+  // lines the listener currently shows, -1 until it got the buffer
+  private int showing = -1;
+  private boolean flushScheduled = false;
+  private long lastFlush = 0;
+  private WeakReference<Listener> listener;
+  // created with the first listener, a log without listener needs no main thread
+  private Handler handler;
+  private final Runnable flush = new Runnable() {
+    public void run() {
+      flush();
+    }
+  };
+  private final FileWriter fileWriter = new FileWriter();
+
+  public SyncLog(int capacity) {
+    this.buffer = new Line[capacity];
+  }
+
+  public void info(String message) {
+    add(new Line(INFO, message));
+  }
+
+  public void warn(String message) {
+    add(new Line(WARN, message));
+  }
+
+  public void error(String message) {
+    add(new Line(ERROR, message));
+  }
+
+  public void add(Line line) {
+    if (LDAPSyncer.DEBUG) System.out.println(line.message);
+    synchronized (this) {
+      this.buffer[(int) (this.count++ % this.buffer.length)] = line;
+      if (this.listener != null) scheduleFlush();
+    }
+    this.fileWriter.write(line);
+  }
+
+  /*
+   * Attaches the listener, it first gets the lines still in the buffer. Null
+   * detaches the current one.
+   */
+  synchronized public void setListener(Listener listener) {
+    this.listener = listener == null ? null : new WeakReference<Listener>(listener);
+    this.showing = -1;
+    if (listener != null) scheduleFlush();
+  }
+
+  /*
+   * Sets the directory of the log file, lines logged before are written to
+   * the previous one.
+   */
+  public void setDirectory(String directory) {
+    this.fileWriter.setFile(directory == null ? null : new File(directory, LOG_FILE));
+  }
+
+  private void scheduleFlush() {
+    if (this.flushScheduled) return;
+    this.flushScheduled = true;
+    if (this.handler == null) this.handler = new Handler(Looper.getMainLooper());
+    long delay = this.lastFlush + 1000 / FRAME_RATE - SystemClock.uptimeMillis();
+    this.handler.postDelayed(this.flush, Math.max(0, delay));
+  }
+
+  private void flush() {
+    Listener listener;
+    List<Line> lines;
+    boolean reset;
+    synchronized (this) {
+      this.flushScheduled = false;
+      this.lastFlush = SystemClock.uptimeMillis();
+      listener = this.listener == null ? null : this.listener.get();
+      if (listener == null) return;
+      long from;
+      if (this.showing < 0) {
+        reset = true;
+        from = Math.max(0, this.count - this.buffer.length);
+      } else if (this.showing + (this.count - this.shown) > this.buffer.length) {
+        // the view holds at most the capacity of the buffer, when it would
+        // hold more it is reset to the last half of it
+        reset = true;
+        from = Math.max(0, this.count - this.buffer.length / 2);
+      } else {
+        reset = false;
+        from = this.shown;
+      }
+      lines = new ArrayList<Line>((int) (this.count - from));
+      for (long i = from; i < this.count; i++) lines.add(this.buffer[(int) (i % this.buffer.length)]);
+      this.showing = reset ? lines.size() : this.showing + lines.size();
+      this.shown = this.count;
+    }
+    if (reset || !lines.isEmpty()) listener.onLog(lines, reset);
+  }
+
+  /*
+   * Appends the lines to the log file in a thread of its own. When the file
+   * exceeds MAX_FILE_SIZE it is moved to LOG_FILE.1 and a new one is started.
+   */
+  private static class FileWriter implements Runnable {
+    private static final Object NO_FILE = new Object();
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(FILE_QUEUE_SIZE);
+    // lines dropped since the writer last noted them
+    private int dropped = 0;
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private Thread thread;
+    private File file;
+    private Writer writer;
+    private long size;
+
+    synchronized void setFile(File file) {
+      if (file != null && file.equals(this.file)) return;
+      this.file = file;
+      Object next = file == null ? NO_FILE : file;
+      if (!this.queue.offer(next)) {
+        // the lines still queued for the previous file are given up
+        this.dropped += this.queue.size();
+        this.queue.clear();
+        this.queue.add(next);
+      }
+    }
+
+    synchronized void write(Line line) {
+      if (this.file == null) return;
+      if (this.thread == null) {
+        this.thread = new Thread(this, "SyncLog");
+        this.thread.setDaemon(true);
+        this.thread.start();
+      }
+      if (!this.queue.offer(line)) this.dropped++;
+    }
+
+    synchronized private int takeDropped() {
+      int dropped = this.dropped;
+      this.dropped = 0;
+      return dropped;
+    }
+
+    public void run() {
+      File file = null;
+      try {
+        while (true) {
+          Object next = this.queue.take();
+          do {
+            if (next instanceof File || next == NO_FILE) {
+              close();
+              file = next instanceof File ? (File) next : null;
+            } else if (file != null) {
+              append(file, (Line) next);
+            }
+          } while ((next = this.queue.poll()) != null);
+          int dropped = takeDropped();
+          if (dropped > 0 && file != null) append(file, new Line(WARN, String.format("%d lines dropped, the log file could not keep up", dropped)));
+          if (this.writer != null) this.writer.flush();
+        }
+      } catch (InterruptedException e) {
+        close();
+      } catch (IOException e) {
+        if (LDAPSyncer.DEBUG) System.out.println(String.format("Writing the log file failed: %s", e.getMessage()));
+        close();
+        synchronized (this) {
+          this.file = null;
+          this.thread = null;
+          this.queue.clear();
+        }
+      }
+    }
+
+    private void append(File file, Line line) throws IOException {
+      if (this.writer != null && this.size > MAX_FILE_SIZE) {
+        close();
+        File previous = new File(file.getPath() + ".1");
+        previous.delete();
+        file.renameTo(previous);
+      }
+      if (this.writer == null) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        this.size = file.length();
+      }
+      String text = String.format("%s %c %s\n", this.format.format(new Date(line.time)), LEVELS[line.level], line.message);
+      this.writer.write(text);
+      this.size += text.length();
+    }
+
+    private void close() {
+      if (this.writer == null) return;
+      try {
+        this.writer.close();
+      } catch (IOException e) {
+        if (LDAPSyncer.DEBUG) System.out.println(String.format("Closing the log file failed: %s", e.getMessage()));
+      }
+      this.writer = null;
+    }
+  }
+}
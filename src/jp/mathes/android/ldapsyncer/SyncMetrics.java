@@ -0,0 +1,238 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+ * Instrumentation of one sync run: the time spent per phase, counters of the
+ * operations on LDAP, the contacts provider and the checksum DB, and latency
+ * histograms of the LDAP round-trips. The phases overlap as entries are
+ * merged and written while the search still runs, the time of a phase is
+ * summed over all threads working in it. The searches, the merge workers and
+ * the connections' reader threads record concurrently.
+ *
+ * After the run the report is written to REPORT_FILE in the data directory
+ * and appended to HISTORY_FILE, one line per run, which keeps the last
+ * HISTORY_SIZE runs.
+ */
+public class SyncMetrics {
+  public static final String REPORT_FILE = "sync-report.json";
+  public static final String HISTORY_FILE = "sync-history.json";
+  public static final int HISTORY_SIZE = 50;
+
+  public static final String PHASE_CONFIG = "config";
+  public static final String PHASE_CHECKSUM_LOAD = "checksumLoad";
+  public static final String PHASE_ANDROID_SCAN = "androidScan";
+  public static final String PHASE_LDAP_SEARCH = "ldapSearch";
+  public static final String PHASE_MERGE = "merge";
+  public static final String PHASE_WRITES = "writes";
+
+  public static final String LDAP_SEARCHES = "ldap.searches";
+  public static final String LDAP_ENTRIES = "ldap.entries";
+  public static final String LDAP_GETS = "ldap.gets";
+  public static final String LDAP_ADDS = "ldap.adds";
+  public static final String LDAP_MODIFIES = "ldap.modifies";
+  public static final String LDAP_DELETES = "ldap.deletes";
+  public static final String LDAP_BYTES_RECEIVED = "ldap.bytesReceived";
+  public static final String ANDROID_QUERIES = "android.queries";
+  public static final String ANDROID_INSERTS = "android.inserts";
+  public static final String ANDROID_UPDATES = "android.updates";
+  public static final String ANDROID_DELETES = "android.deletes";
+  // calls of the contacts provider the inserts, updates and deletes above took
+  public static final String ANDROID_WRITE_CALLS = "android.writeCalls";
+  public static final String CHECKSUM_READS = "checksum.reads";
+  public static final String CHECKSUM_WRITES = "checksum.writes";
+  public static final String CONFLICTS = "conflicts";
+
+  public static final String LATENCY_SEARCH = "ldap.search";
+  public static final String LATENCY_GET = "ldap.get";
+  public static final String LATENCY_WRITE = "ldap.write";
+
+  // upper bounds of the histogram buckets, the last bucket has none
+  private static final long[] BUCKET_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+  private static class Histogram {
+    long count, totalNanos, maxNanos;
+    final long[] buckets = new long[BUCKET_MILLIS.length + 1];
+
+    void add(long nanos) {
+      this.count++;
+      this.totalNanos += nanos;
+      if (nanos > this.maxNanos) this.maxNanos = nanos;
+      int bucket = 0;
+      while (bucket < BUCKET_MILLIS.length && nanos > BUCKET_MILLIS[bucket] * 1000000) bucket++;
+      this.buckets[bucket]++;
+    }
+  }
+
+  private final long started = System.currentTimeMillis();
+  private final long startedNanos = System.nanoTime();
+  private long finishedNanos = -1;
+  private final Map<String, String> properties = new LinkedHashMap<String, String>();
+  private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+  private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+  private final Map<String, Histogram> latencies = new LinkedHashMap<String, Histogram>();
+
+  public SyncMetrics() {
+    for (String phase : new String[] { PHASE_CONFIG, PHASE_CHECKSUM_LOAD, PHASE_ANDROID_SCAN, PHASE_LDAP_SEARCH, PHASE_MERGE, PHASE_WRITES }) this.phases.put(phase, 0L);
+    for (String counter : new String[] { LDAP_SEARCHES, LDAP_ENTRIES, LDAP_GETS, LDAP_ADDS, LDAP_MODIFIES, LDAP_DELETES, LDAP_BYTES_RECEIVED, ANDROID_QUERIES,
+        ANDROID_INSERTS, ANDROID_UPDATES, ANDROID_DELETES, ANDROID_WRITE_CALLS, CHECKSUM_READS, CHECKSUM_WRITES, CONFLICTS }) this.counters.put(counter, 0L);
+  }
+
+  /*
+   * The start of a timed section, to be passed to time() or latency().
+   */
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  synchronized public void time(String phase, long start) {
+    Long total = this.phases.get(phase);
+    this.phases.put(phase, (total == null ? 0 : total) + System.nanoTime() - start);
+  }
+
+  public void count(String counter) {
+    count(counter, 1);
+  }
+
+  synchronized public void count(String counter, long n) {
+    Long total = this.counters.get(counter);
+    this.counters.put(counter, (total == null ? 0 : total) + n);
+  }
+
+  synchronized public long get(String counter) {
+    Long total = this.counters.get(counter);
+    return total == null ? 0 : total;
+  }
+
+  synchronized public void latency(String operation, long start) {
+    Histogram histogram = this.latencies.get(operation);
+    if (histogram == null) {
+      histogram = new Histogram();
+      this.latencies.put(operation, histogram);
+    }
+    histogram.add(System.nanoTime() - start);
+  }
+
+  synchronized public void set(String property, Object value) {
+    this.properties.put(property, String.valueOf(value));
+  }
+
+  synchronized public String getProperty(String property) {
+    return this.properties.get(property);
+  }
+
+  synchronized public void finish() {
+    if (this.finishedNanos < 0) this.finishedNanos = System.nanoTime();
+  }
+
+  synchronized public String toJson() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"started\":").append(quote(format.format(new Date(this.started))));
+    json.append(",\"durationMs\":").append(millis((this.finishedNanos < 0 ? System.nanoTime() : this.finishedNanos) - this.startedNanos));
+    for (Map.Entry<String, String> property : this.properties.entrySet()) json.append(',').append(quote(property.getKey())).append(':').append(quote(property.getValue()));
+    json.append(",\"phasesMs\":{");
+    int i = 0;
+    for (Map.Entry<String, Long> phase : this.phases.entrySet()) {
+      json.append(i++ > 0 ? "," : "").append(quote(phase.getKey())).append(':').append(millis(phase.getValue()));
+    }
+    json.append("},\"counters\":{");
+    i = 0;
+    for (Map.Entry<String, Long> counter : this.counters.entrySet()) {
+      json.append(i++ > 0 ? "," : "").append(quote(counter.getKey())).append(':').append(counter.getValue());
+    }
+    json.append("},\"latencies\":{");
+    i = 0;
+    for (Map.Entry<String, Histogram> latency : this.latencies.entrySet()) {
+      Histogram histogram = latency.getValue();
+      json.append(i++ > 0 ? "," : "").append(quote(latency.getKey())).append(":{");
+      json.append("\"count\":").append(histogram.count);
+      json.append(",\"avgMs\":").append(histogram.count == 0 ? 0 : millis(histogram.totalNanos / histogram.count));
+      json.append(",\"maxMs\":").append(millis(histogram.maxNanos));
+      json.append(",\"bucketsMs\":{");
+      for (int bucket = 0; bucket < histogram.buckets.length; bucket++) {
+        String bound = bucket < BUCKET_MILLIS.length ? "<=" + BUCKET_MILLIS[bucket] : ">" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1];
+        json.append(bucket > 0 ? "," : "").append(quote(bound)).append(':').append(histogram.buckets[bucket]);
+      }
+      json.append("}}");
+    }
+    json.append("}}");
+    return json.toString();
+  }
+
+  /*
+   * Writes the report and adds it to the history.
+   */
+  public void write(String dataDirectory) throws IOException {
+    String json = toJson();
+    File report = new File(dataDirectory, REPORT_FILE);
+    Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+    try {
+      out.write(json);
+      out.write('\n');
+    } finally {
+      out.close();
+    }
+    File history = new File(dataDirectory, HISTORY_FILE);
+    LinkedList<String> runs = new LinkedList<String>();
+    if (history.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(history), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.length() > 0) runs.add(line);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    runs.add(json);
+    while (runs.size() > HISTORY_SIZE) runs.removeFirst();
+    out = new OutputStreamWriter(new FileOutputStream(history), "UTF-8");
+    try {
+      for (String run : runs) {
+        out.write(run);
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.valueOf(nanos / 100000 / 10.0);
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModifyRequest;
+
+/*
+ * The decisions of a sync before anything is written: the merges that write
+ * anything, in the order they were decided. Of the other entries only the
+ * contacts they confirm, the partitions they moved to and their warnings are
+ * kept, so the plan grows with the changes and not with the directory. The
+ * checksums of the merges are put into the cache while the plan is made, so
+ * a later merge of the same entry starts from them, and reverted before the
+ * plan is executed or dropped.
+ *
+ * The plan file lists one operation per line, tab separated: the type, the
+ * entry and what is written.
+ */
+public class SyncPlan {
+  public static final String PLAN_FILE = "sync-plan.txt";
+
+  public static final String LDAP_ADD = "ldap.add";
+  public static final String LDAP_MODIFY = "ldap.modify";
+  public static final String LDAP_DELETE = "ldap.delete";
+  public static final String ANDROID_CREATE = "android.create";
+  public static final String ANDROID_UPDATE = "android.update";
+  public static final String ANDROID_DELETE = "android.delete";
+  public static final String ANDROID_INSERT_ROW = "android.insertRow";
+  public static final String ANDROID_DELETE_ROW = "android.deleteRow";
+  public static final String CHECKSUMS_REPLACE = "checksums.replace";
+  public static final String CHECKSUMS_REMOVE = "checksums.remove";
+  public static final String WARNING = "warning";
+
+  private final List<EntryMerge> merges = new ArrayList<EntryMerge>();
+  private int entries = 0;
+  // the contacts confirmed for the AndroidChangeTracker, see ContactStore.confirm()
+  private final List<String> confirmedIds = new ArrayList<String>();
+  private long[] confirmedPersonIds = new long[64];
+  // entries found in another partition than the one their checksums name
+  private final List<String> movedIds = new ArrayList<String>();
+  private final List<String> movedPartitions = new ArrayList<String>();
+  private final List<String[]> warnings = new ArrayList<String[]>();
+  private boolean reverted = false;
+
+  public void add(EntryMerge merge) {
+    this.entries++;
+    for (SyncLog.Line message : merge.getMessages()) {
+      if (message.getLevel() != SyncLog.INFO) this.warnings.add(new String[] { WARNING, merge.getId(), message.getMessage() });
+    }
+    if (merge.getConfirmedPersonId() >= 0) {
+      if (this.confirmedIds.size() == this.confirmedPersonIds.length) {
+        long[] grown = new long[this.confirmedPersonIds.length * 2];
+        System.arraycopy(this.confirmedPersonIds, 0, grown, 0, this.confirmedPersonIds.length);
+        this.confirmedPersonIds = grown;
+      }
+      this.confirmedPersonIds[this.confirmedIds.size()] = merge.getConfirmedPersonId();
+      this.confirmedIds.add(merge.getId());
+    }
+    if (merge.hasWrites()) this.merges.add(merge);
+  }
+
+  public void move(String id, String partition) {
+    this.movedIds.add(id);
+    this.movedPartitions.add(partition);
+  }
+
+  public List<EntryMerge> getMerges() {
+    return Collections.unmodifiableList(this.merges);
+  }
+
+  /*
+   * Records the partitions of the moved entries in the checksums, an entry
+   * whose checksums were reverted to none is left out.
+   */
+  public void applyMoves(ChecksumCache checksums) {
+    for (int i = 0; i < this.movedIds.size(); i++) {
+      if (checksums.exists(this.movedIds.get(i))) checksums.setPartition(this.movedIds.get(i), this.movedPartitions.get(i));
+    }
+  }
+
+  /*
+   * Confirms the contacts, those of entries whose writes failed were
+   * rejected already and stay so.
+   */
+  public void applyConfirmations(ContactStore contacts) {
+    for (int i = 0; i < this.confirmedIds.size(); i++) contacts.confirm(this.confirmedIds.get(i), this.confirmedPersonIds[i]);
+  }
+
+  /*
+   * Drops the checksums the plan put into the cache, only the first call has
+   * an effect.
+   */
+  public void revert(ChecksumCache checksums) {
+    if (this.reverted) return;
+    for (EntryMerge merge : this.merges) checksums.revert(merge.getId());
+    this.reverted = true;
+  }
+
+  /*
+   * The operations of a merge, each as type, entry and detail.
+   */
+  private static List<String[]> getOperations(EntryMerge merge) {
+    List<String[]> operations = new ArrayList<String[]>(4);
+    String id = merge.getId();
+    LDAPRequest ldapWrite = merge.getLDAPWrite();
+    if (ldapWrite instanceof AddRequest) {
+      AddRequest add = (AddRequest) ldapWrite;
+      StringBuilder detail = new StringBuilder(add.getDN()).append(':');
+      for (Attribute attribute : add.getAttributes()) detail.append(' ').append(attribute.getName());
+      operations.add(new String[] { LDAP_ADD, id, detail.toString() });
+    } else if (ldapWrite instanceof ModifyRequest) {
+      ModifyRequest modify = (ModifyRequest) ldapWrite;
+      StringBuilder detail = new StringBuilder(modify.getDN()).append(':');
+      for (Modification modification : modify.getModifications()) {
+        detail.append(' ').append(modification.getModificationType().getName()).append(' ').append(modification.getAttributeName());
+      }
+      operations.add(new String[] { LDAP_MODIFY, id, detail.toString() });
+    } else if (ldapWrite instanceof DeleteRequest) {
+      operations.add(new String[] { LDAP_DELETE, id, ((DeleteRequest) ldapWrite).getDN() });
+    }
+    if (merge.hasAndroidWrites()) operations.addAll(merge.getAndroidWrites().getOperations());
+    if (merge.isChecksumsChanged()) operations.add(new String[] { merge.getChecksums() == null ? CHECKSUMS_REMOVE : CHECKSUMS_REPLACE, id, "" });
+    return operations;
+  }
+
+  /*
+   * The number of operations by type.
+   */
+  private Map<String, Integer> count() {
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    for (String type : new String[] { LDAP_ADD, LDAP_MODIFY, LDAP_DELETE, ANDROID_CREATE, ANDROID_UPDATE, ANDROID_DELETE, ANDROID_INSERT_ROW, ANDROID_DELETE_ROW,
+        CHECKSUMS_REPLACE, CHECKSUMS_REMOVE, WARNING }) counts.put(type, 0);
+    for (EntryMerge merge : this.merges) {
+      for (String[] operation : getOperations(merge)) counts.put(operation[0], counts.get(operation[0]) + 1);
+    }
+    counts.put(WARNING, this.warnings.size());
+    return counts;
+  }
+
+  /*
+   * Writes the operations to the plan file, merge by merge and the warnings
+   * last, and returns a one line summary.
+   */
+  public String write(String dataDirectory) throws IOException {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<String, Integer> count : count().entrySet()) {
+      if (count.getValue() == 0) continue;
+      summary.append(summary.length() == 0 ? "" : ", ").append(count.getValue()).append(' ').append(count.getKey());
+    }
+    if (summary.length() == 0) summary.append("nothing to do");
+    summary.insert(0, String.format("Plan for %d entries: ", this.entries));
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dataDirectory, PLAN_FILE)), "UTF-8"));
+    try {
+      out.write(String.format("# %s\n# %s\n", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), summary));
+      for (EntryMerge merge : this.merges) write(out, getOperations(merge));
+      write(out, this.warnings);
+    } finally {
+      out.close();
+    }
+    return summary.toString();
+  }
+
+  private static void write(Writer out, List<String[]> operations) throws IOException {
+    for (String[] operation : operations) {
+      out.write(operation[0]);
+      out.write('\t');
+      out.write(clean(operation[1]));
+      if (operation[2].length() > 0) {
+        out.write('\t');
+        out.write(clean(operation[2]));
+      }
+      out.write('\n');
+    }
+  }
+
+  private static String clean(String value) {
+    return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+}
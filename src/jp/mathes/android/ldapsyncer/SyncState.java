@@ -0,0 +1,97 @@
+/*
+ * (c) Copyright Bastian Mathes 2009,2010
+ *  Released under GPL v2.
+ */
+package jp.mathes.android.ldapsyncer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/*
+ * State kept between syncs in the data directory: the high-water mark of the
+ * LDAP change attribute (modifyTimestamp or entryCSN) of the last successful
+ * sync, the search it belongs to and the time of the last full sync. Each
+ * partition has a state of its own, the keys of a named partition are
+ * prefixed with its name.
+ *
+ * Marks are compared as strings. Generalized times and CSNs written by one
+ * server sort correctly that way.
+ */
+public class SyncState {
+  public static final String STATE_FILE = "sync-state.properties";
+
+  private static final String HIGH_WATER_MARK = "highWaterMark";
+  private static final String SEARCH = "search";
+  private static final String LAST_FULL_SYNC = "lastFullSync";
+  private static final long DAY = 24L * 60 * 60 * 1000;
+
+  private final File file;
+  private final Properties properties = new Properties();
+
+  private SyncState(File file) {
+    this.file = file;
+  }
+
+  public static SyncState load(String dataDirectory) throws IOException {
+    SyncState state = new SyncState(new File(dataDirectory + File.separator + STATE_FILE));
+    if (state.file.exists()) {
+      InputStream in = new FileInputStream(state.file);
+      try {
+        state.properties.load(in);
+      } finally {
+        in.close();
+      }
+    }
+    return state;
+  }
+
+  public static void delete(String dataDirectory) {
+    File file = new File(dataDirectory + File.separator + STATE_FILE);
+    if (file.exists()) file.delete();
+  }
+
+  public static String max(String mark, String value) {
+    if (value == null) return mark;
+    return mark == null || value.compareTo(mark) > 0 ? value : mark;
+  }
+
+  public String getHighWaterMark(String partition) {
+    return this.properties.getProperty(key(partition, HIGH_WATER_MARK));
+  }
+
+  /*
+   * A delta sync needs a mark written for the same search and, if full syncs
+   * are due periodically, a full sync within the last fullSyncDays days.
+   */
+  public boolean allowsDelta(String partition, String search, int fullSyncDays) {
+    if (getHighWaterMark(partition) == null || !search.equals(this.properties.getProperty(key(partition, SEARCH)))) return false;
+    if (fullSyncDays <= 0) return true;
+    long lastFullSync = Long.parseLong(this.properties.getProperty(key(partition, LAST_FULL_SYNC), "0"));
+    return System.currentTimeMillis() - lastFullSync < fullSyncDays * DAY;
+  }
+
+  public void update(String partition, String search, String highWaterMark, boolean fullSync) {
+    if (!search.equals(this.properties.getProperty(key(partition, SEARCH)))) this.properties.remove(key(partition, HIGH_WATER_MARK));
+    this.properties.setProperty(key(partition, SEARCH), search);
+    if (highWaterMark != null) this.properties.setProperty(key(partition, HIGH_WATER_MARK), highWaterMark);
+    if (fullSync) this.properties.setProperty(key(partition, LAST_FULL_SYNC), Long.toString(System.currentTimeMillis()));
+  }
+
+  public void save() throws IOException {
+    OutputStream out = new FileOutputStream(this.file);
+    try {
+      this.properties.store(out, "LDAPSyncer sync state");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String key(String partition, String key) {
+    return partition.length() == 0 ? key : partition + "." + key;
+  }
+}